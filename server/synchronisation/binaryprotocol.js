@@ -0,0 +1,63 @@
+/**
+ * Length-prefixed binary protocol for the standard input and output of the java applications (see the README).
+ * All numbers are 4 byte big-endian integers.
+ */
+
+// Types of the frames in the output
+var matchframe = 1;
+var progressframe = 2;
+
+// Size of a match in a match frame (subtitle index, book index and score in hundredths)
+var matchsize = 12;
+
+/**
+ * Encodes a job for the standard input of a java application
+ * @param parameters an array with the parameters for the matching algorithm
+ * @param booksentences an array with the book sentences
+ * @param subsentences an array with the subtitles
+ * @return a buffer with the number of strings of each array, each followed by the strings (length in bytes and UTF-8 bytes)
+ */
+exports.encodeJob = function(parameters,booksentences,subsentences){
+	var buffers = new Array();
+	[parameters,booksentences,subsentences].forEach(function (strings){
+		var count = new Buffer(4);
+		count.writeInt32BE(strings.length,0);
+		buffers.push(count);
+		strings.forEach(function (string){
+			var bytes = new Buffer(''+string,'utf8');
+			var length = new Buffer(4);
+			length.writeInt32BE(bytes.length,0);
+			buffers.push(length);
+			buffers.push(bytes);
+		});
+	});
+	return Buffer.concat(buffers);
+}
+
+/**
+ * Creates a decoder for the standard output of a java application
+ * @param onmatch the function that is called for every match with the subtitle index, the book index and the score
+ * @param onprogress the function that is called for every progress report with the name and the percentage
+ * @return a function that needs to be called with every chunk of the output (as a buffer)
+ */
+exports.createDecoder = function(onmatch,onprogress){
+	var pending = new Buffer(0); // Start of a frame that wasn't received completely
+	return function(chunk){
+		var data = (pending.length > 0)?Buffer.concat([pending,chunk]):chunk;
+		var position = 0;
+		while (data.length-position >= 4 && data.length-position-4 >= data.readInt32BE(position)){
+			var end = position+4+data.readInt32BE(position);
+			var type = data[position+4];
+			if (type === matchframe){
+				for (var match = position+5; match+matchsize <= end; match += matchsize){
+					onmatch(data.readInt32BE(match),data.readInt32BE(match+4),data.readInt32BE(match+8)/100);
+				}
+			}
+			else if (type === progressframe){
+				onprogress(data.toString('utf8',position+9,end),data.readInt32BE(position+5));
+			}
+			position = end;
+		}
+		pending = data.slice(position);
+	}
+}
@@ -4,6 +4,8 @@
 
 var fs = require('fs'); // Module for IO
 var readline = require('readline'); // Module for reading IO per line
+var net = require('net'); // Module for connecting to the java service
+var binaryprotocol = require(__dirname + '/../binaryprotocol.js'); // Binary input and output of the java application
 
 // Minimum similarity to be considered a match
 var mindelta = 0.6;
@@ -37,85 +39,197 @@ exports.synchronize = function(book,subtitle,parameters,updater,callback){
 		minimumscorefortimewindow = parameters[3];
 	}
 
-	var nrdone = 0;
+	// Adds a match that the java application found
+	var addMatch = function(subindex,quoteindex,score){
+		var match = { 
+			"fromTime" : subtitles[subindex].fromTime,
+			"subtitleindex" : subindex,
+			"quoteindex" : quoteindex,
+			"subtitle" : subtitles[subindex].text,
+	   		"quote" : book[quoteindex].text,
+	   		"score" : score
+		};
+		matches["match"].push(match);
+	}
+
+	// Passes a progressreport of the java application to the updater
 	var bookpreparationstarted = false;
 	var subpreparationstarted = false;
 	var similarityprogressstarted = false;
+	var setProgress = function(progressname,procentnumber){
+		updater.emit('syncprogressupdate',procentnumber);
+		if (!similarityprogressstarted && progressname.indexOf("similarity") !== -1){
+			updater.emit('message',"Synchronisation in progress...");
+			similarityprogressstarted = true;
+		}
+		else if (!bookpreparationstarted && progressname.indexOf("bookpreparation") !== -1){
+			updater.emit('message',"Preparing the book for synchronisation...");
+			bookpreparationstarted = true;
+		}
+		else if (!subpreparationstarted && progressname.indexOf("subpreparation") !== -1){
+			updater.emit('message',"Preparing the subtitles for synchronisation...");
+			subpreparationstarted = true;
+		}
+	}
+
+	// Reports a failed job of the java service, the matches so far aren't passed on as the result
+	var failed = false;
+	var fail = function(reason){
+		failed = true;
+		updater.emit('message',"Synchronisation failed: "+reason);
+	}
+
+	// Handles the output of the java application, line per line
+	var linereader;
+	var readOutput = function(output){
+		linereader = readline.createInterface({ // Make the output be produced line per line
+			input : output,
+			terminal: false
+		});
+		linereader.on('line', function(line) { // Reaction on receiving a line from the output
+			var linesplit = line.split('-');
+			if (line.indexOf("error - ") === 0){ // The java service reports why the job failed
+				fail(line.substring("error - ".length).trim());
+			}
+			else if (linesplit[0].indexOf("match") !== -1){ // If it is a match, process it
+				addMatch(parseInt(linesplit[1].trim()),parseInt(linesplit[2].trim()),parseFloat(linesplit[3].trim()));
+			}
+			else if (linesplit[0].indexOf("progress") !== -1){ // Pass progressreport to the updater
+				setProgress(linesplit[0].trim(),parseInt(linesplit[1].trim()));
+			}
+		});
+		linereader.on('close', function() { // Program has finished
+			if (!failed){
+				callback(matches);
+			}
+		});
+	}
+
+	// Handles the output of the java application in frames of the binary protocol
+	var readBinaryOutput = function(output){
+		output.on('data', binaryprotocol.createDecoder(addMatch,setProgress));
+		output.on('end', function() { // Program has finished
+			callback(matches);
+		});
+	}
+
+	// Starts the java application for this job, the sentences are passed on the standard input
+	var startBinary = function(){
+		updater.emit('message',"Starting SRL Library (this can take some time)");
+		var spawn = require('child_process').spawn;
+		var child = spawn('java',['-Xmx4g','-Dsemanticanalysis.binary=true','-jar','SemanticAnalysisSimilarity.jar'],
+		{
+			cwd : __dirname+'/../libs/' // Set working directory to the libs folder (where the java application resides)
+		});
+
+		readBinaryOutput(child.stdout);
+		child.stderr.on('data', function(data){ // Forward the logging of the application, it blocks when this isn't read
+			process.stderr.write(data);
+		});
+		child.stdin.on('error', function(err){ // The application stopped before it read the job
+			console.log(err);
+		});
+		child.stdin.end(binaryprotocol.encodeJob(getParameters(),book.map(function (bookvalue){
+			return bookvalue.text;
+		}),subtitles.map(function (subvalue){
+			return subvalue.text;
+		})));
+	}
+
+	// Starts the java application for this job, the sentences are passed in files
+	var nrdone = 0;
 	var doneWriting = function(){
 		nrdone++;
 		if (nrdone === 2){
 			updater.emit('message',"Starting SRL Library (this can take some time)");
 			var spawn = require('child_process').spawn;
-			var child = spawn('java',['-jar','-Xmx4g','SemanticAnalysisSimilarity.jar','book','subtitle',''+mindelta,''+minnumberofmatchingwords,''+relsearchwindow,''+minimumscorefortimewindow],
+			var child = spawn('java',['-jar','-Xmx4g','SemanticAnalysisSimilarity.jar','book','subtitle'].concat(getParameters()),
 			{
 				cwd : __dirname+'/../libs/' // Set working directory to the libs folder (where the java application resides)
 			});
 
 			child.stdout.setEncoding('utf8');
-			linereader = readline.createInterface({ // Make the file output be produced line per line
-				input : child.stdout, 
-				output : child.stdin,
-				terminal: false
-			});
-			linereader.on('line', function(line) { // Reaction on receiving a line from stdout
-				var linesplit = line.split('-');
-				if (linesplit[0].indexOf("match") !== -1){ // If it is a match, process it
-					var subindex = parseInt(linesplit[1].trim());
-					var quoteindex = parseInt(linesplit[2].trim());
-					var match = { 
-						"fromTime" : subtitles[subindex].fromTime,
-						"subtitleindex" : subindex,
-						"quoteindex" : quoteindex,
-						"subtitle" : subtitles[subindex].text,
-				   		"quote" : book[quoteindex].text,
-				   		"score" : parseFloat(linesplit[3].trim())
-					};
-					matches["match"].push(match);
-				}
-				else if (linesplit[0].indexOf("progress") !== -1){ // Pass progressreport to the updater
-					var procentnumber = parseInt(linesplit[1].trim());
-					updater.emit('syncprogressupdate',procentnumber);
-					if (!similarityprogressstarted && linesplit[0].indexOf("similarity") !== -1){
-						updater.emit('message',"Synchronisation in progress...");
-						similarityprogressstarted = true;
-					}
-					else if (!bookpreparationstarted && linesplit[0].indexOf("bookpreparation") !== -1){
-						updater.emit('message',"Preparing the book for synchronisation...");
-						bookpreparationstarted = true;
-					}
-					else if (!subpreparationstarted && linesplit[0].indexOf("subpreparation") !== -1){
-						updater.emit('message',"Preparing the subtitles for synchronisation...");
-						subpreparationstarted = true;
-					}
-				}
-			});
-			linereader.on('close', function() { // Program has finished
-				callback(matches);
-			});
+			readOutput(child.stdout);
 		}
 	}
+	var writeFiles = function(){
+		// Write book sentences to file
+		var bookText = "";
+		book.forEach(function (bookvalue){
+			bookText += bookvalue.text+"\n";
+		});
+		fs.writeFile(__dirname + '/../libs/book', bookText, function (err) {
+			if (err){
+				console.log(err);
+			}
+			doneWriting();
+		});
+
+		// Write subtitle sentences to file
+		var subtitleText = "";
+		subtitles.forEach(function (subvalue, subindex){ 
+			subtitleText += subvalue.text+"\n";
+		});
+		fs.writeFile(__dirname + '/../libs/subtitle', subtitleText, function (err) {
+			if (err){
+				console.log(err);
+			}
+			doneWriting();
+		});
+	}
+
+	// Send the job to the java service if it runs (see the README), the models are already loaded there
+	var config = JSON.parse(fs.readFileSync(__dirname + '/../../config.json'));
+	var startJava = (config["binaryprotocol"] === true)?startBinary:writeFiles;
+	var daemonport = (config["daemonports"] !== undefined)?config["daemonports"]["sentenceanalysismatcher"]:undefined;
+	if (daemonport !== undefined){
+		var connected = false;
+		var socket = net.connect(daemonport, '127.0.0.1', function(){
+			connected = true;
+			socket.setEncoding('utf8');
+			readOutput(socket);
+			socket.write(getJob(book,subtitles,getParameters()));
+		});
+		socket.on('error', function(err){
+			if (!connected){ // The service doesn't run
+				startJava();
+			}
+			else{
+				console.log(err);
+				fail(err.message);
+				linereader.close();
+			}
+		});
+	}
+	else{
+		startJava();
+	}
+}
+
+/**
+ * Get the parameters of the java application
+ * @return an array with the parameters as strings
+ */
+var getParameters = function(){
+	return [''+mindelta,''+minnumberofmatchingwords,''+relsearchwindow,''+minimumscorefortimewindow];
+}
 
-	// Write book sentences to file
-	var bookText = "";
+/**
+ * Get the job for the java service: a line with the parameters, the number of book sentences,
+ * the book sentences, the number of subtitles and the subtitles (one per line)
+ * @param book the parsed epub file
+ * @param subtitles the subtitles
+ * @param parameters the parameters of the java application
+ * @return the job
+ */
+var getJob = function(book,subtitles,parameters){
+	var job = parameters.join(' ')+"\n"+book.length+"\n";
 	book.forEach(function (bookvalue){
-		bookText += bookvalue.text+"\n";
-	});
-	fs.writeFile(__dirname + '/../libs/book', bookText, function (err) {
-		if (err){
-			console.log(err);
-		}
-		doneWriting();
+		job += bookvalue.text.replace(/[\r\n]/g,' ')+"\n";
 	});
-
-	// Write subtitle sentences to file
-	var subtitleText = "";
-	subtitles.forEach(function (subvalue, subindex){ 
-		subtitleText += subvalue.text+"\n";
+	job += subtitles.length+"\n";
+	subtitles.forEach(function (subvalue){
+		job += subvalue.text.replace(/[\r\n]/g,' ')+"\n";
 	});
-	fs.writeFile(__dirname + '/../libs/subtitle', subtitleText, function (err) {
-		if (err){
-			console.log(err);
-		}
-		doneWriting();
-	});	
+	return job;
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+/**
+ * Band of subtitles around the expected position of a book sentence, assuming the book and the film follow the same order.
+ * The expected position follows the diagonal from the last confident match to the end of both files,
+ * so the band moves along with the matches that are found.
+ * @author jeknocka
+ */
+public class AlignmentBand {
+
+    private final int numberofbooksentences;
+    private final int numberofsubtitles;
+    private final int halfwidth; // Number of subtitles on each side of the expected position
+    // Last confident match (the start of both files before the first one)
+    private int anchorbook = 0;
+    private int anchorsubtitle = 0;
+
+    /**
+     * Creates a band along the diagonal of the book and the subtitles
+     * @param numberofbooksentences the number of book sentences
+     * @param numberofsubtitles the number of subtitles
+     * @param relwidth the width of the band on each side of the expected position, relative to the number of subtitles
+     */
+    public AlignmentBand(int numberofbooksentences, int numberofsubtitles, float relwidth){
+        this.numberofbooksentences = numberofbooksentences;
+        this.numberofsubtitles = numberofsubtitles;
+        this.halfwidth = Math.max(1, Math.round(relwidth*numberofsubtitles));
+    }
+
+    /**
+     * Get the expected position of the subtitle of a book sentence
+     * @param bookindex the index of the book sentence
+     * @return the index of the expected subtitle
+     */
+    private long getExpectedPosition(int bookindex){
+        int remainingbook = numberofbooksentences-anchorbook;
+        int remainingsubtitles = numberofsubtitles-anchorsubtitle;
+        if (remainingbook <= 0){
+            return anchorsubtitle;
+        }
+        return anchorsubtitle+(long)(bookindex-anchorbook)*remainingsubtitles/remainingbook;
+    }
+
+    /**
+     * Get the first subtitle in the band of a book sentence
+     * @param bookindex the index of the book sentence
+     * @return the index of the first subtitle
+     */
+    public int getStart(int bookindex){
+        return (int)Math.max(0, Math.min(numberofsubtitles, getExpectedPosition(bookindex)-halfwidth));
+    }
+
+    /**
+     * Get the end of the band of a book sentence
+     * @param bookindex the index of the book sentence
+     * @return the index after the last subtitle
+     */
+    public int getEnd(int bookindex){
+        return (int)Math.max(0, Math.min(numberofsubtitles, getExpectedPosition(bookindex)+halfwidth+1));
+    }
+
+    /**
+     * Move the band to a confident match, the next book sentences are expected after it
+     * @param bookindex the index of the book sentence
+     * @param subindex the index of the matching subtitle
+     */
+    public void addMatch(int bookindex, int subindex){
+        anchorbook = bookindex;
+        anchorsubtitle = subindex;
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The analyzed sentences of a book or subtitle file in flat arrays, so comparing sentences allocates nothing.
+ * Words and role labels are stored as ids of a vocabulary. Each sentence has a range of tokens (with the type
+ * of their POS tag) and a range of predicates, each predicate has a range of roles sorted on their id
+ * and each role has a range of words. The predicates of the sentences can be added after all tokens,
+ * in the same order.
+ * @author jeknocka
+ */
+public class AnalyzedCorpus {
+
+    private final Vocabulary words;
+    private final Vocabulary roles;
+
+    // Tokens of the sentences
+    private int[] tokenoffsets = new int[1024];
+    private int[] tokens = new int[1024];
+    private byte[] tokentypes = new byte[1024];
+    private int numberofsentences;
+    // Predicates of the sentences (only for the first sentences if they haven't been added for all sentences yet), with the total number of words of their roles
+    private int[] predicateoffsets = new int[1024];
+    private int[] wordcounts = new int[1024];
+    private int[] relwords = new int[1024];
+    private int numberoflabeledsentences;
+    // Roles of the predicates
+    private int[] roleoffsets = new int[1024];
+    private int[] roleids = new int[1024];
+    // Words of the roles
+    private int[] wordoffsets = new int[1024];
+    private int[] rolewords = new int[1024];
+
+    /**
+     * Creates an empty corpus
+     * @param words the vocabulary of the words (shared with the corpus it is compared with)
+     * @param roles the vocabulary of the role labels (shared with the corpus it is compared with)
+     */
+    public AnalyzedCorpus(Vocabulary words, Vocabulary roles){
+        this.words = words;
+        this.roles = roles;
+    }
+
+    /**
+     * Adds the tokens of a sentence after the sentences that were already added
+     * @param sentence the analyzed sentence
+     */
+    public void addTokens(AnalyzedSentence sentence){
+        int sentenceindex = numberofsentences++;
+        tokenoffsets = ensureCapacity(tokenoffsets, numberofsentences+1);
+
+        int tokenstart = tokenoffsets[sentenceindex];
+        int tokenend = tokenstart+sentence.getTokens().size();
+        tokens = ensureCapacity(tokens, tokenend);
+        if (tokentypes.length < tokenend){
+            tokentypes = Arrays.copyOf(tokentypes, Math.max(tokenend, tokentypes.length*2));
+        }
+        for (int i = 0; i < sentence.getTokens().size(); i++){
+            tokens[tokenstart+i] = words.getId(sentence.getTokens().get(i));
+            tokentypes[tokenstart+i] = (byte)getType(sentence.getPOS().get(i));
+        }
+        tokenoffsets[numberofsentences] = tokenend;
+    }
+
+    /**
+     * Adds the predicates of the next sentence that has no predicates yet
+     * @param SRLMap the words of each role for each predicate of the sentence
+     */
+    public void addFrames(Map<String, Map<String, List<String>>> SRLMap){
+        int sentenceindex = numberoflabeledsentences++;
+        predicateoffsets = ensureCapacity(predicateoffsets, numberoflabeledsentences+1);
+        int predicate = predicateoffsets[sentenceindex];
+        for (Map<String, List<String>> frame : SRLMap.values()){
+            wordcounts = ensureCapacity(wordcounts, predicate+1);
+            relwords = ensureCapacity(relwords, predicate+1);
+            roleoffsets = ensureCapacity(roleoffsets, predicate+2);
+            int rolestart = roleoffsets[predicate];
+            int roleend = rolestart+frame.size();
+            roleids = ensureCapacity(roleids, roleend);
+            wordoffsets = ensureCapacity(wordoffsets, roleend+1);
+            // Add the roles sorted on their id, so common roles can be found by merging
+            int wordcount = 0;
+            int role = rolestart;
+            for (Map.Entry<String, List<String>> entry : frame.entrySet()){
+                int id = roles.getId(entry.getKey());
+                int position = role;
+                while (position > rolestart && roleids[position-1] > id){
+                    roleids[position] = roleids[position-1];
+                    position--;
+                }
+                roleids[position] = id;
+                role++;
+                wordcount += entry.getValue().size();
+            }
+            for (role = rolestart; role < roleend; role++){
+                List<String> wordlist = frame.get(roles.getString(roleids[role]));
+                int wordstart = wordoffsets[role];
+                rolewords = ensureCapacity(rolewords, wordstart+wordlist.size());
+                for (int i = 0; i < wordlist.size(); i++){
+                    rolewords[wordstart+i] = words.getId(wordlist.get(i));
+                }
+                wordoffsets[role+1] = wordstart+wordlist.size();
+            }
+            wordcounts[predicate] = wordcount;
+            List<String> rel = frame.get("rel");
+            relwords[predicate] = (rel != null && rel.size() == 1)?words.getId(rel.get(0)):-1;
+            roleoffsets[predicate+1] = roleend;
+            predicate++;
+        }
+        predicateoffsets[numberoflabeledsentences] = predicate;
+    }
+
+    /**
+     * Make sure an array has room for the given number of elements
+     * @param array the array
+     * @param size the number of elements
+     * @return the array, or a bigger copy
+     */
+    private static int[] ensureCapacity(int[] array, int size){
+        if (array.length < size){
+            return Arrays.copyOf(array, Math.max(size, array.length*2));
+        }
+        return array;
+    }
+
+    /**
+     * Get the type of a word from its POS tag
+     * @param POS the POS tag
+     * @return 'v' for verbs, 'a' for adjectives, 'r' for adverbs and 'n' for the other words
+     */
+    public static char getType(String POS){
+        if (POS.contains("VB")){
+            return 'v'; // Verb
+        }
+        else if (POS.contains("JJ")){
+            return 'a'; // Adjective
+        }
+        else if (POS.contains("RB")){
+            return 'r'; // Adverb
+        }
+        return 'n'; // Noun
+    }
+
+    /**
+     * @return the number of sentences
+     */
+    public int size(){
+        return numberofsentences;
+    }
+
+    /**
+     * @return the number of sentences of which the predicates were added
+     */
+    public int getNumberOfLabeledSentences(){
+        return numberoflabeledsentences;
+    }
+
+    /**
+     * Get the start of the tokens of each sentence (the tokens of sentence i end at the start of sentence i+1)
+     * @return the offsets in the token arrays
+     */
+    public int[] getTokenOffsets() {
+        return tokenoffsets;
+    }
+
+    /**
+     * Get the word ids of the tokens
+     * @return the tokens
+     */
+    public int[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Get the types of the tokens (see getType)
+     * @return the types
+     */
+    public byte[] getTokenTypes() {
+        return tokentypes;
+    }
+
+    /**
+     * Get the start of the predicates of each sentence
+     * @return the offsets in the predicate arrays
+     */
+    public int[] getPredicateOffsets() {
+        return predicateoffsets;
+    }
+
+    /**
+     * Get the number of words in the roles of each predicate
+     * @return the word counts
+     */
+    public int[] getWordCounts() {
+        return wordcounts;
+    }
+
+    /**
+     * Get the word of the "rel" role (the predicate itself) of each predicate
+     * @return the word ids, -1 for a predicate without a single word in that role
+     */
+    public int[] getRelWords() {
+        return relwords;
+    }
+
+    /**
+     * Get the start of the roles of each predicate
+     * @return the offsets in the role arrays
+     */
+    public int[] getRoleOffsets() {
+        return roleoffsets;
+    }
+
+    /**
+     * Get the label ids of the roles, in ascending order for each predicate
+     * @return the role ids
+     */
+    public int[] getRoleIds() {
+        return roleids;
+    }
+
+    /**
+     * Get the start of the words of each role
+     * @return the offsets in the role word array
+     */
+    public int[] getWordOffsets() {
+        return wordoffsets;
+    }
+
+    /**
+     * Get the word ids of the roles
+     * @return the role words
+     */
+    public int[] getRoleWords() {
+        return rolewords;
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of the SRL library that are used to compare a sentence: the words of each role of each predicate,
+ * and the lowercase tokens (without punctuation) with their POS tags.
+ * Sentences that are too short to be compared on their roles are only tagged, they have no predicates.
+ * @author jeknocka
+ */
+public class AnalyzedSentence {
+
+    private final Map<String, Map<String, List<String>>> SRLMap;
+    private final List<String> tokens;
+    private final List<String> POS;
+    private final boolean labeled;
+
+    /**
+     * Creates an analyzed sentence
+     * @param SRLMap the words of each role for each predicate
+     * @param tokens the tokens of the sentence
+     * @param POS the POS tags of the tokens
+     * @param labeled true if the semantic roles were labeled, false if the sentence was only tagged
+     */
+    public AnalyzedSentence(Map<String, Map<String, List<String>>> SRLMap, List<String> tokens, List<String> POS, boolean labeled){
+        this.SRLMap = SRLMap;
+        this.tokens = tokens;
+        this.POS = POS;
+        this.labeled = labeled;
+    }
+
+    /**
+     * Get the words of each role for each predicate
+     * @return the SRL map
+     */
+    public Map<String, Map<String, List<String>>> getSRLMap() {
+        return SRLMap;
+    }
+
+    /**
+     * Get the lowercase tokens of the sentence, without punctuation
+     * @return the tokens
+     */
+    public List<String> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Get the POS tags of the tokens
+     * @return the POS tags
+     */
+    public List<String> getPOS() {
+        return POS;
+    }
+
+    /**
+     * Check if the semantic roles were labeled
+     * @return true if the roles were labeled, false if the sentence was only tagged (it has no predicates)
+     */
+    public boolean isLabeled() {
+        return labeled;
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the subtitles by their normalized form (lowercase, only letters and digits), to find the subtitles
+ * in a window that are equal to a short book sentence without comparing every subtitle in the window
+ * @author jeknocka
+ */
+public class ExactMatchIndex {
+
+    // Positions of the subtitles with each normalized form, in ascending order
+    private final Map<String, int[]> positions = new HashMap<String, int[]>();
+
+    /**
+     * Creates the index of the given subtitles
+     * @param subtitles the subtitles
+     */
+    public ExactMatchIndex(List<String> subtitles){
+        Map<String, List<Integer>> positionlists = new HashMap<String, List<Integer>>();
+        for (int subindex = 0; subindex < subtitles.size(); subindex++){
+            String normalized = normalize(subtitles.get(subindex));
+            List<Integer> positionlist = positionlists.get(normalized);
+            if (positionlist == null){
+                positionlist = new ArrayList<Integer>(1);
+                positionlists.put(normalized, positionlist);
+            }
+            positionlist.add(subindex);
+        }
+        for (Map.Entry<String, List<Integer>> positionlist : positionlists.entrySet()){
+            int[] sorted = new int[positionlist.getValue().size()];
+            for (int i = 0; i < sorted.length; i++){
+                sorted[i] = positionlist.getValue().get(i);
+            }
+            positions.put(positionlist.getKey(), sorted);
+        }
+    }
+
+    /**
+     * Normalize a sentence: the lowercase sentence without the characters that aren't letters or digits
+     * (the same as replacing [^a-zA-Z0-9] in the lowercase sentence)
+     * @param sentence the sentence
+     * @return the normalized sentence
+     */
+    public static String normalize(String sentence){
+        String lowercase = sentence.toLowerCase();
+        StringBuilder normalized = new StringBuilder(lowercase.length());
+        for (int i = 0; i < lowercase.length(); i++){
+            char c = lowercase.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')){
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Find the subtitles in a window that are equal to a sentence
+     * @param sentence the sentence
+     * @param start the first subtitle of the window
+     * @param end the end of the window (exclusive)
+     * @param matches list to which the equal subtitles are added, in ascending order
+     */
+    public void findMatches(String sentence, int start, int end, List<Integer> matches){
+        int[] sorted = positions.get(normalize(sentence));
+        if (sorted == null){
+            return;
+        }
+        // Find the first position in the window
+        int low = 0;
+        int high = sorted.length;
+        while (low < high){
+            int middle = (low+high) >>> 1;
+            if (sorted[middle] < start){
+                low = middle+1;
+            }
+            else{
+                high = middle;
+            }
+        }
+        for (int i = low; i < sorted.length && sorted[i] < end; i++){
+            matches.add(sorted[i]);
+        }
+    }
+}
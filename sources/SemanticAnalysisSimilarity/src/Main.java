@@ -1,11 +1,17 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import se.lth.cs.srl.CompletePipeline;
 import se.lth.cs.srl.options.CompletePipelineCMDLineOptions;
 import se.lth.cs.srl.util.FileExistenceVerifier;
 
@@ -23,37 +29,23 @@ public class Main {
     public static void main(String[] args) throws IOException {
         // Set path to wordnet dictionairy
         System.setProperty("wordnet.database.dir", (new File("dict")).getAbsolutePath());
+        // In service mode the jobs are received on a local port instead
+        int daemonport = Integer.getInteger("semanticanalysis.daemonport", 0);
+        // With the binary protocol the job is read from the standard input instead
+        boolean binary = Boolean.getBoolean("semanticanalysis.binary");
 
         // Look for filenames of inputfiles
-        if (args.length != 6){
+        if (daemonport <= 0 && !binary && args.length != 6){
             System.err.println("needs <bookinput> <subtitleinput> <mindelta> <minnumberofmatchingwords> <relsearchwindow> <minimumscorefortimewindow> as arguments");
             System.exit(0);
         }
         
-        // Read in the sentences
-        List<String> booksentences = new ArrayList<String>();
-        List<String> subsentences = new ArrayList<String>();
-        try {
-            for (int i = 0; i <= 1; i++){
-                BufferedReader in = new BufferedReader(new FileReader(args[i]));
-                String sentence = in.readLine();
-                while (sentence != null){
-                    if (i == 0)
-                        booksentences.add(sentence);
-                    else
-                        subsentences.add(sentence);
-                    sentence = in.readLine();
-                }
-            }
-        } catch (FileNotFoundException ex) {
-            System.err.println("File not found!");
-        } catch (IOException ex) {
-            System.err.println(ex);
+        // Only the frames of the binary protocol are written to the standard output (the SRL library prints as well)
+        BinaryProtocol binaryoutput = null;
+        if (binary){
+            binaryoutput = new BinaryProtocol(Channels.newChannel(new FileOutputStream(FileDescriptor.out)));
+            System.setOut(System.err);
         }
-        float mindelta = Float.parseFloat(args[2]);
-        int minnumberofmatchingwords = Integer.parseInt(args[3]);
-        float relsearchwindow = Float.parseFloat(args[4]);
-        float minimumscorefortimewindow = Float.parseFloat(args[5]);
         
         // Set default arguments for the SRL library
         String[] defaultargs = {
@@ -75,16 +67,112 @@ public class Main {
             System.err.println("Aborting.");
             System.exit(1);
         }
-        // Create pipeline of the SRL library in order to be able to parse sentences
-        CompletePipeline completePipeline = null;
+        // The models are only loaded once, when a sentence has to be parsed, and the cache is shared by all jobs
+        SRLCache srlcache = null;
+        if (System.getProperty("semanticanalysis.srlcache") != null){
+            srlcache = new SRLCache(new File(System.getProperty("semanticanalysis.srlcache")),
+                    options.tokenizer, options.lemmatizer, options.tagger, options.morph, options.parser, options.srl);
+        }
+        final CompletePipelineCMDLineOptions sharedoptions = options;
+        final SRLCache sharedsrlcache = srlcache;
+        
+        if (daemonport > 0){
+            new JobServer(daemonport, Integer.getInteger("semanticanalysis.daemonjobs", 2), new JobServer.Job() {
+                @Override
+                public void run(List<String> booksentences, List<String> subsentences, String[] parameters, PrintStream out) throws IOException {
+                    synchronize(booksentences, subsentences, parameters, new TextMatchOutput(out), sharedoptions, sharedsrlcache);
+                }
+            }).serve();
+            return;
+        }
+        
+        if (binary){
+            DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+            List<String> parameters = BinaryProtocol.readStrings(in);
+            List<String> booksentences = BinaryProtocol.readStrings(in);
+            List<String> subsentences = BinaryProtocol.readStrings(in);
+            synchronize(booksentences, subsentences, parameters.toArray(new String[parameters.size()]), binaryoutput, options, srlcache);
+            return;
+        }
+        
+        // Read in the sentences
+        List<String> booksentences = new ArrayList<String>();
+        List<String> subsentences = new ArrayList<String>();
         try {
-            completePipeline = CompletePipeline.getCompletePipeline(options);
-        } catch (ClassNotFoundException ex) {
+            for (int i = 0; i <= 1; i++){
+                BufferedReader in = new BufferedReader(new FileReader(args[i]));
+                String sentence = in.readLine();
+                while (sentence != null){
+                    if (i == 0)
+                        booksentences.add(sentence);
+                    else
+                        subsentences.add(sentence);
+                    sentence = in.readLine();
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            System.err.println("File not found!");
+        } catch (IOException ex) {
             System.err.println(ex);
         }
-        // Execute synchronisation
-        SentenceLevelSemanticSimilarity sentencesim = new SentenceLevelSemanticSimilarity(completePipeline, mindelta, minnumberofmatchingwords, relsearchwindow, minimumscorefortimewindow);
-        sentencesim.synchronize(booksentences, subsentences);
+        synchronize(booksentences, subsentences, Arrays.copyOfRange(args, 2, 6), new TextMatchOutput(System.out), options, srlcache);
+    }
+    
+    /**
+     * Synchronizes a book and subtitles and prints the matches
+     * @param booksentences the sentences of the book
+     * @param subsentences the sentences of the subtitles
+     * @param parameters <mindelta> <minnumberofmatchingwords> <relsearchwindow> <minimumscorefortimewindow>
+     * @param output the output for the matches and the progress
+     * @param options the options of the SRL library
+     * @param srlcache the cache of the analyzed sentences, null if it isn't used
+     * @throws IOException Writing failed
+     */
+    private static void synchronize(List<String> booksentences, List<String> subsentences, String[] parameters, MatchOutput output,
+            CompletePipelineCMDLineOptions options, SRLCache srlcache) throws IOException {
+        if (parameters.length != 4){
+            throw new IllegalArgumentException("needs <mindelta> <minnumberofmatchingwords> <relsearchwindow> <minimumscorefortimewindow> as parameters");
+        }
+        float mindelta = Float.parseFloat(parameters[0]);
+        int minnumberofmatchingwords = Integer.parseInt(parameters[1]);
+        float relsearchwindow = Float.parseFloat(parameters[2]);
+        float minimumscorefortimewindow = Float.parseFloat(parameters[3]);
+        
+        // Execute synchronisation (the pipeline of the SRL library is created when a sentence has to be parsed)
+        SentenceLevelSemanticSimilarity sentencesim = new SentenceLevelSemanticSimilarity(options, mindelta, minnumberofmatchingwords, relsearchwindow, minimumscorefortimewindow);
+        sentencesim.setOutput(output);
+        // Optional settings are passed as system properties (-Dname=value)
+        sentencesim.setPipelined(!"false".equals(System.getProperty("semanticanalysis.pipeline")));
+        sentencesim.setDeferBook(Boolean.getBoolean("semanticanalysis.deferbook"));
+        sentencesim.setCascade(Integer.getInteger("semanticanalysis.cascadetopn", 0),
+                Float.parseFloat(System.getProperty("semanticanalysis.cascadethreshold", "0")));
+        sentencesim.setLSH(Integer.getInteger("semanticanalysis.lshbands", 0), Integer.getInteger("semanticanalysis.lshrows", 0));
+        sentencesim.setBand(Float.parseFloat(System.getProperty("semanticanalysis.band", "0")));
+        sentencesim.setCascadeRecall(Boolean.getBoolean("semanticanalysis.cascaderecall"));
+        sentencesim.setSRLCache(srlcache);
+        try {
+            sentencesim.synchronize(booksentences, subsentences);
+        } finally { // In service mode a failed job would keep its threads
+            sentencesim.close();
+        }
+        
+        // Keep the new sentences for the next runs
+        if (srlcache != null){
+            try {
+                srlcache.close();
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+        }
+        
+        // Report the number of compared and skipped pairs after the run
+        if (Boolean.getBoolean("semanticanalysis.statistics")){
+            System.err.format("pairs - scored %d - pruned %d%n", sentencesim.getScoredPairs(), sentencesim.getPrunedPairs());
+            System.err.format("frames - scored %d - pruned %d%n", sentencesim.getScoredFrames(), sentencesim.getPrunedFrames());
+            System.err.format("cascade - candidates %d - recalled %d of %d%n", sentencesim.getCascadeCandidates(),
+                    sentencesim.getCascadeRecalled(), sentencesim.getCascadeRelevant());
+            System.err.format("band - fallbacks %d%n", sentencesim.getBandFallbacks());
+        }
     }     
 }
 
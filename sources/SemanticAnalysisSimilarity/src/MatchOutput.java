@@ -0,0 +1,26 @@
+/**
+ * Output of the matches and the progress of a synchronisation (used by one thread at a time)
+ * @author jeknocka
+ */
+public interface MatchOutput {
+
+    /**
+     * Add a match
+     * @param subindex the index of the subtitle
+     * @param bookindex the index of the book sentence
+     * @param score the similarity of the match
+     */
+    void addMatch(int subindex, int bookindex, double score);
+
+    /**
+     * Report the progress of a step of the synchronisation
+     * @param name the name of the progress (for example similarityprogress)
+     * @param progress the percentage that is done
+     */
+    void setProgress(String name, int progress);
+
+    /**
+     * Send everything that was added, at the end of the synchronisation
+     */
+    void flush();
+}
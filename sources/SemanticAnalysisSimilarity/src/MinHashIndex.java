@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds the items of which the set of word ids is probably similar to a given set, with MinHash signatures
+ * that are split in bands (locality-sensitive hashing). Two sets are returned as candidates if all rows of at least
+ * one band are equal, so sets with a high Jaccard similarity are likely to be found without comparing all items.
+ * @author jeknocka
+ */
+public class MinHashIndex {
+
+    private final int bands;
+    private final int rows;
+    // Seed of each hash function (bands*rows functions, the same for every run)
+    private final long[] seeds;
+    // For each band, the hash of the band in the high half and the item in the low half (sorted before the first query)
+    private final long[][] buckets;
+    private int numberofitems;
+    private boolean sorted;
+    // Signature of the current set
+    private final long[] signature;
+    // Items that were already found by the current query
+    private int[] marks = new int[0];
+    private int stamp;
+
+    /**
+     * Creates an empty index
+     * @param bands the number of bands, a pair of sets is a candidate if one band is equal
+     * @param rows the number of hash values in a band
+     * @param capacity the number of items that will be added
+     */
+    public MinHashIndex(int bands, int rows, int capacity){
+        this.bands = bands;
+        this.rows = rows;
+        this.seeds = new long[bands*rows];
+        Random random = new Random(bands*31+rows);
+        for (int i = 0; i < seeds.length; i++){
+            seeds[i] = random.nextLong();
+        }
+        this.buckets = new long[bands][capacity];
+        this.signature = new long[bands*rows];
+    }
+
+    /**
+     * Adds an item to the index
+     * @param item the item (not negative)
+     * @param set array with the word ids of the item
+     * @param size the number of word ids in the array
+     */
+    public void add(int item, int[] set, int size){
+        if (size == 0){
+            return;
+        }
+        calculateSignature(set, size);
+        for (int band = 0; band < bands; band++){
+            buckets[band][numberofitems] = ((long)getBandHash(band) << 32) | item;
+        }
+        numberofitems++;
+        sorted = false;
+    }
+
+    /**
+     * Find the items that share at least one band with a set
+     * @param set array with the word ids
+     * @param size the number of word ids in the array
+     * @param result array for the items, big enough for all items
+     * @return the number of items that were found, they are at the start of result in ascending order
+     */
+    public int query(int[] set, int size, int[] result){
+        if (size == 0){
+            return 0;
+        }
+        if (!sorted){
+            for (int band = 0; band < bands; band++){
+                Arrays.sort(buckets[band], 0, numberofitems);
+            }
+            sorted = true;
+        }
+        stamp++;
+        if (stamp == 0){ // Wrapped around
+            Arrays.fill(marks, 0);
+            stamp = 1;
+        }
+        calculateSignature(set, size);
+        int numberfound = 0;
+        for (int band = 0; band < bands; band++){
+            long first = (long)getBandHash(band) << 32;
+            long[] bucket = buckets[band];
+            for (int i = findFirst(bucket, first); i < numberofitems && (bucket[i] & 0xFFFFFFFF00000000L) == first; i++){
+                int item = (int)bucket[i];
+                if (item >= marks.length){
+                    marks = Arrays.copyOf(marks, Math.max(item+1, marks.length*2));
+                }
+                if (marks[item] != stamp){
+                    marks[item] = stamp;
+                    result[numberfound++] = item;
+                }
+            }
+        }
+        Arrays.sort(result, 0, numberfound);
+        return numberfound;
+    }
+
+    /**
+     * Find the first position in a sorted bucket array that isn't smaller than a value
+     * @param bucket the sorted bucket array
+     * @param value the value
+     * @return the position, numberofitems if all entries are smaller
+     */
+    private int findFirst(long[] bucket, long value){
+        int low = 0;
+        int high = numberofitems;
+        while (low < high){
+            int middle = (low+high) >>> 1;
+            if (bucket[middle] < value){
+                low = middle+1;
+            }
+            else{
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Calculate the MinHash signature of a set: the smallest hash value of its elements for every hash function
+     * @param set array with the word ids
+     * @param size the number of word ids in the array
+     */
+    private void calculateSignature(int[] set, int size){
+        for (int i = 0; i < seeds.length; i++){
+            long min = Long.MAX_VALUE;
+            for (int j = 0; j < size; j++){
+                long hash = hash(set[j], seeds[i]);
+                if (hash < min){
+                    min = hash;
+                }
+            }
+            signature[i] = min;
+        }
+    }
+
+    /**
+     * Get the hash of a band of the current signature
+     * @param band the band
+     * @return the hash of the rows of the band
+     */
+    private int getBandHash(int band){
+        long hash = band;
+        for (int row = band*rows; row < (band+1)*rows; row++){
+            hash = hash*31+signature[row];
+        }
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Hash a word id with the given seed
+     * @param value the word id
+     * @param seed the seed of the hash function
+     * @return the hash value
+     */
+    private static long hash(int value, long seed){
+        long hash = (value ^ seed)*0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 30))*0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27))*0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+}
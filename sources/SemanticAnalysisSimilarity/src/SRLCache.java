@@ -0,0 +1,612 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of analyzed sentences on disk, so a sentence is only parsed by the SRL library the first time it is seen.
+ * The file starts with a header with the fingerprint of the models, followed by a record per sentence
+ * with the SHA-1 hash of the sentence, the length of the data and the data itself.
+ * New sentences are appended at the end of a run. The cache is only used with the models it was made with.
+ * The records of the file stay in memory-mapped segments outside the heap, only an index with the position
+ * of each record is kept on the heap and a sentence is decoded when it is requested. Users of the cache can keep
+ * the record of a sentence instead of the decoded sentence, and decode it again when they need it.
+ * The cache can be shared by synchronisations that run at the same time.
+ * @author jeknocka
+ */
+public class SRLCache {
+
+    private static final int magic = 0x53524C46; // "SRLF"
+    private static final int formatversion = 2;
+    private static final int keysize = 20; // SHA-1
+    private static final long maxsegmentsize = 1L << 30; // A mapped segment can't be bigger than 2GB
+
+    private final File file;
+    private final String modelfingerprint;
+
+    // Records in the file: open addressing table with the first 8 bytes of the key, and the position of the record
+    // in the file shifted left with a flag in the lowest bit that is set if the sentence was labeled (0 for an empty slot)
+    private long[] recordkeys = new long[1024];
+    private long[] records = new long[1024];
+    private int numberofrecords;
+    // Mapped segments of the file, each starts at a record
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long[] segmentstarts = new long[0];
+    // Sentences that were added during this run
+    private final Map<ByteBuffer, AnalyzedSentence> pending = new LinkedHashMap<ByteBuffer, AnalyzedSentence>();
+
+    /**
+     * Opens the cache in the given file, an empty cache is used if the file doesn't exist
+     * or was made with other models
+     * @param file the file of the cache
+     * @param models the model files of the SRL library (null for models that aren't used)
+     */
+    public SRLCache(File file, File... models){
+        this.file = file;
+        StringBuilder fingerprint = new StringBuilder();
+        for (File model : models){
+            if (model != null){
+                fingerprint.append(model.getName()).append(':').append(model.length()).append(':').append(model.lastModified()).append('\n');
+            }
+        }
+        this.modelfingerprint = fingerprint.toString();
+        if (file.exists()){
+            try {
+                load();
+            } catch (IOException | RuntimeException ex) { // Damaged file, the sentences are parsed again
+                System.err.println(ex);
+            }
+        }
+    }
+
+    /**
+     * Index the records in the file and map them in segments
+     * @throws IOException reading failed
+     */
+    private void load() throws IOException {
+        List<Long> starts = new ArrayList<Long>();
+        long[] scannedkeys = new long[1024];
+        long[] scannedrecords = new long[1024];
+        int numberscanned = 0;
+        long end;
+        long filelength = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != magic || in.readInt() != formatversion || !in.readUTF().equals(modelfingerprint)){
+                return;
+            }
+            long position = getHeaderSize();
+            end = position;
+            starts.add(position);
+            byte[] key = new byte[keysize];
+            try {
+                while (readRecordKey(in, key)){
+                    int length = in.readInt();
+                    if (length < 1 || position+keysize+4+length > filelength){
+                        break; // The last record wasn't written completely
+                    }
+                    boolean labeled = in.readBoolean();
+                    in.skipBytes(length-1);
+                    if (position+keysize+4+length-starts.get(starts.size()-1) > maxsegmentsize){
+                        starts.add(position);
+                    }
+                    if (numberscanned == scannedrecords.length){
+                        scannedkeys = Arrays.copyOf(scannedkeys, numberscanned*2);
+                        scannedrecords = Arrays.copyOf(scannedrecords, numberscanned*2);
+                    }
+                    scannedkeys[numberscanned] = ByteBuffer.wrap(key).getLong(0);
+                    scannedrecords[numberscanned] = (position << 1) | (labeled?1:0);
+                    numberscanned++;
+                    position += keysize+4+length;
+                    end = position;
+                }
+            } catch (EOFException ex) { // The last record wasn't written completely
+            }
+        } finally {
+            in.close();
+        }
+        // Map the complete records
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            segments = new MappedByteBuffer[starts.size()];
+            segmentstarts = new long[starts.size()];
+            for (int i = 0; i < starts.size(); i++){
+                segmentstarts[i] = starts.get(i);
+                long segmentend = (i+1 < starts.size())?starts.get(i+1):end;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentstarts[i], segmentend-segmentstarts[i]);
+            }
+        } finally {
+            channel.close(); // The mapping stays valid
+        }
+        for (int i = 0; i < numberscanned; i++){
+            addRecord(scannedkeys[i], scannedrecords[i]);
+        }
+    }
+
+    /**
+     * Get the size of the header of the file
+     * @return the number of bytes before the first record
+     * @throws IOException writing failed
+     */
+    private long getHeaderSize() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(magic);
+        out.writeInt(formatversion);
+        out.writeUTF(modelfingerprint);
+        out.flush();
+        return header.size();
+    }
+
+    /**
+     * Add a record to the index, a labeled record replaces a record of the same sentence that was only tagged
+     * @param key the first 8 bytes of the key
+     * @param record the record (see records)
+     */
+    private void addRecord(long key, long record){
+        if ((numberofrecords+1)*2 > records.length){
+            // Rehash into a bigger table
+            long[] oldkeys = recordkeys;
+            long[] oldrecords = records;
+            recordkeys = new long[records.length*2];
+            records = new long[records.length*2];
+            for (int i = 0; i < oldrecords.length; i++){
+                if (oldrecords[i] != 0){
+                    int slot = getFirstSlot(oldkeys[i]);
+                    while (records[slot] != 0){
+                        slot = (slot+1) & (records.length-1);
+                    }
+                    recordkeys[slot] = oldkeys[i];
+                    records[slot] = oldrecords[i];
+                }
+            }
+        }
+        int slot = getFirstSlot(key);
+        while (records[slot] != 0){
+            if (recordkeys[slot] == key && Arrays.equals(readKey(records[slot]), readKey(record))){
+                if ((records[slot] & 1) == 0 || (record & 1) == 1){ // Keep the labeled record
+                    records[slot] = record;
+                }
+                return;
+            }
+            slot = (slot+1) & (records.length-1);
+        }
+        recordkeys[slot] = key;
+        records[slot] = record;
+        numberofrecords++;
+    }
+
+    /**
+     * Get the first slot of the index for a key (the next slots are tried if it is taken)
+     * @param key the first 8 bytes of the key
+     * @return the slot
+     */
+    private int getFirstSlot(long key){
+        return (int)(key ^ (key >>> 32)) & (records.length-1);
+    }
+
+    /**
+     * Find the record of a sentence in the file
+     * @param key the key of the sentence
+     * @return the record (see records), 0 if the sentence isn't in the file
+     */
+    private long findRecord(ByteBuffer key){
+        long prefix = key.getLong(0);
+        int slot = getFirstSlot(prefix);
+        while (records[slot] != 0){
+            if (recordkeys[slot] == prefix && Arrays.equals(readKey(records[slot]), key.array())){
+                return records[slot];
+            }
+            slot = (slot+1) & (records.length-1);
+        }
+        return 0;
+    }
+
+    /**
+     * Get the segment that contains a record
+     * @param record the record (see records)
+     * @return a view of the segment, positioned at the start of the record
+     */
+    private ByteBuffer getSegment(long record){
+        long position = record >>> 1;
+        int segment = Arrays.binarySearch(segmentstarts, position);
+        if (segment < 0){
+            segment = -segment-2; // The last segment that starts before the record
+        }
+        ByteBuffer view = segments[segment].duplicate();
+        view.position((int)(position-segmentstarts[segment]));
+        return view;
+    }
+
+    /**
+     * Read the key of a record in the file
+     * @param record the record (see records)
+     * @return the key
+     */
+    private byte[] readKey(long record){
+        byte[] key = new byte[keysize];
+        getSegment(record).get(key);
+        return key;
+    }
+
+    /**
+     * Read the data of a record in the file
+     * @param record the record (see records)
+     * @return the data
+     */
+    private byte[] readData(long record){
+        ByteBuffer segment = getSegment(record);
+        segment.position(segment.position()+keysize);
+        byte[] data = new byte[segment.getInt()];
+        segment.get(data);
+        return data;
+    }
+
+    /**
+     * Read the key of the next record
+     * @param in the input
+     * @param key array for the key
+     * @return false if there are no more records
+     * @throws IOException reading failed
+     */
+    private static boolean readRecordKey(DataInputStream in, byte[] key) throws IOException {
+        int first = in.read();
+        if (first < 0){
+            return false;
+        }
+        key[0] = (byte)first;
+        in.readFully(key, 1, keysize-1);
+        return true;
+    }
+
+    /**
+     * Get an analyzed sentence from the cache
+     * @param sentence the sentence
+     * @return the analyzed sentence, null if it isn't in the cache
+     */
+    public synchronized AnalyzedSentence get(String sentence){
+        ByteBuffer key = getKey(sentence);
+        if (key == null){
+            return null;
+        }
+        AnalyzedSentence added = pending.get(key);
+        if (added != null){
+            return added;
+        }
+        long record = findRecord(key);
+        if (record == 0){
+            return null;
+        }
+        try {
+            return decode(readData(record));
+        } catch (IOException ex) { // Damaged record
+            System.err.println(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Find the record of a sentence in the file, so the sentence can be decoded again later (see get)
+     * instead of keeping the decoded sentence
+     * @param sentence the sentence
+     * @return the record, 0 if the sentence isn't in the file or was added during this run
+     */
+    public synchronized long getRecord(String sentence){
+        ByteBuffer key = getKey(sentence);
+        if (key == null || pending.containsKey(key)){
+            return 0;
+        }
+        return findRecord(key);
+    }
+
+    /**
+     * Get an analyzed sentence from its record in the file. If the file was replaced in the meantime,
+     * the sentence is looked up again.
+     * @param sentence the sentence
+     * @param record the record of the sentence (see getRecord)
+     * @return the analyzed sentence, null if it isn't in the cache anymore
+     */
+    public synchronized AnalyzedSentence get(String sentence, long record){
+        ByteBuffer key = getKey(sentence);
+        if (key == null){
+            return null;
+        }
+        try {
+            if (Arrays.equals(readKey(record), key.array())){
+                return decode(readData(record));
+            }
+        } catch (IOException | RuntimeException ex) { // The record isn't at this position anymore
+        }
+        return get(sentence);
+    }
+
+    /**
+     * Add an analyzed sentence to the cache, it is written to the file when the cache is closed.
+     * A sentence that was only tagged is replaced when it is labeled later.
+     * @param sentence the sentence
+     * @param analyzed the analyzed sentence
+     */
+    public synchronized void put(String sentence, AnalyzedSentence analyzed){
+        ByteBuffer key = getKey(sentence);
+        if (key == null){
+            return;
+        }
+        AnalyzedSentence added = pending.get(key);
+        long record = findRecord(key);
+        boolean cached = added != null || record != 0;
+        boolean cachedlabeled = (added != null)?added.isLabeled():(record & 1) == 1;
+        if (!cached || (!cachedlabeled && analyzed.isLabeled())){
+            pending.put(key, analyzed);
+        }
+    }
+
+    /**
+     * Write the sentences that were added during this run to the file, the cache can still be used afterwards
+     * @throws IOException writing the file failed
+     */
+    public synchronized void close() throws IOException {
+        if (pending.isEmpty()){
+            return;
+        }
+        // Other runs could be writing at the same time, a separate lock file is used
+        // because the cache itself is replaced when it belongs to other models
+        RandomAccessFile lockfile = new RandomAccessFile(new File(file.getPath()+".lock"), "rw");
+        try {
+            FileLock lock = lockfile.getChannel().lock();
+            try {
+                long end = getEndOfRecords();
+                if (end >= 0){
+                    appendRecords(end);
+                }
+                else{
+                    rewrite();
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockfile.close();
+        }
+        pending.clear();
+        // Index the file again, so the sentences that were written (and those of other runs) are found in it
+        recordkeys = new long[1024];
+        records = new long[1024];
+        numberofrecords = 0;
+        segments = new MappedByteBuffer[0];
+        segmentstarts = new long[0];
+        try {
+            load();
+        } catch (IOException | RuntimeException ex) { // Damaged file, the sentences are parsed again
+            System.err.println(ex);
+        }
+    }
+
+    /**
+     * Find the end of the last complete record in the file
+     * @return the position after the last complete record, -1 if the file can't be extended
+     * (it doesn't exist or was made with other models)
+     * @throws IOException reading failed
+     */
+    private long getEndOfRecords() throws IOException {
+        if (!file.exists()){
+            return -1;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            if (length < 8 || in.readInt() != magic || in.readInt() != formatversion || !in.readUTF().equals(modelfingerprint)){
+                return -1;
+            }
+            long end = in.getFilePointer();
+            // Skip the data of the records
+            while (end+keysize+4 <= length){
+                in.seek(end+keysize);
+                long next = end+keysize+4+in.readInt();
+                if (next > length){
+                    break;
+                }
+                end = next;
+            }
+            return end;
+        } catch (EOFException ex) { // Damaged header
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Append the pending sentences after the last complete record of the file
+     * @param end the position after the last complete record
+     * @throws IOException writing failed
+     */
+    private void appendRecords(long end) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            if (end < out.length()){
+                out.setLength(end); // Drop a record that wasn't written completely
+            }
+            out.seek(end);
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            writeRecords(new DataOutputStream(records), pending);
+            out.write(records.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a new file with the records that were read and the sentences of this run, the old file is replaced at once
+     * so other runs never read a half written file
+     * @throws IOException writing failed
+     */
+    private void rewrite() throws IOException {
+        File tempfile = new File(file.getPath()+".tmp");
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null){
+            directory.mkdirs();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempfile)));
+        try {
+            out.writeInt(magic);
+            out.writeInt(formatversion);
+            out.writeUTF(modelfingerprint);
+            // Copy the records from the mapped segments, unless they were replaced during this run
+            for (int slot = 0; slot < records.length; slot++){
+                if (records[slot] != 0 && !pending.containsKey(ByteBuffer.wrap(readKey(records[slot])))){
+                    byte[] data = readData(records[slot]);
+                    out.write(readKey(records[slot]));
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+            writeRecords(out, pending);
+        } finally {
+            out.close();
+        }
+        Files.move(tempfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the records of the given sentences
+     * @param out the output
+     * @param sentences the analyzed sentences by key
+     * @throws IOException writing failed
+     */
+    private static void writeRecords(DataOutputStream out, Map<ByteBuffer, AnalyzedSentence> sentences) throws IOException {
+        for (Map.Entry<ByteBuffer, AnalyzedSentence> record : sentences.entrySet()){
+            byte[] data = encode(record.getValue());
+            out.write(record.getKey().array());
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.flush();
+    }
+
+    /**
+     * Encode an analyzed sentence: whether it was labeled, the tokens with their POS tags, followed by the predicates
+     * with the words of each role
+     * @param analyzed the analyzed sentence
+     * @return the data of the record
+     * @throws IOException writing failed
+     */
+    private static byte[] encode(AnalyzedSentence analyzed) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeBoolean(analyzed.isLabeled());
+        out.writeInt(analyzed.getTokens().size());
+        for (int i = 0; i < analyzed.getTokens().size(); i++){
+            out.writeUTF(analyzed.getTokens().get(i));
+            out.writeUTF(analyzed.getPOS().get(i));
+        }
+        out.writeInt(analyzed.getSRLMap().size());
+        for (Map.Entry<String, Map<String, List<String>>> predicate : analyzed.getSRLMap().entrySet()){
+            out.writeUTF(predicate.getKey());
+            out.writeInt(predicate.getValue().size());
+            for (Map.Entry<String, List<String>> role : predicate.getValue().entrySet()){
+                out.writeUTF(role.getKey());
+                writeWords(out, role.getValue());
+            }
+        }
+        out.flush();
+        return data.toByteArray();
+    }
+
+    /**
+     * Decode the data of a record
+     * @param data the data
+     * @return the analyzed sentence
+     * @throws IOException reading failed
+     */
+    private static AnalyzedSentence decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        boolean labeled = in.readBoolean();
+        int numberoftokens = in.readInt();
+        List<String> tokens = new ArrayList<String>(numberoftokens);
+        List<String> POS = new ArrayList<String>(numberoftokens);
+        for (int i = 0; i < numberoftokens; i++){
+            tokens.add(in.readUTF());
+            POS.add(in.readUTF());
+        }
+        Map<String, Map<String, List<String>>> SRLMap = new HashMap<String, Map<String, List<String>>>();
+        int numberofpredicates = in.readInt();
+        for (int i = 0; i < numberofpredicates; i++){
+            String predicate = in.readUTF();
+            Map<String, List<String>> roleMap = new HashMap<String, List<String>>();
+            int numberofroles = in.readInt();
+            for (int j = 0; j < numberofroles; j++){
+                String role = in.readUTF();
+                roleMap.put(role, readWords(in));
+            }
+            SRLMap.put(predicate, roleMap);
+        }
+        return new AnalyzedSentence(SRLMap, tokens, POS, labeled);
+    }
+
+    /**
+     * Write a list of words
+     * @param out the output
+     * @param words the words
+     * @throws IOException writing failed
+     */
+    private static void writeWords(DataOutputStream out, List<String> words) throws IOException {
+        out.writeInt(words.size());
+        for (String word : words){
+            out.writeUTF(word);
+        }
+    }
+
+    /**
+     * Read a list of words
+     * @param in the input
+     * @return the words
+     * @throws IOException reading failed
+     */
+    private static List<String> readWords(DataInputStream in) throws IOException {
+        int numberofwords = in.readInt();
+        List<String> words = new ArrayList<String>(numberofwords);
+        for (int i = 0; i < numberofwords; i++){
+            words.add(in.readUTF());
+        }
+        return words;
+    }
+
+    /**
+     * Get the key of a sentence
+     * @param sentence the sentence
+     * @return the SHA-1 hash of the sentence, null if it couldn't be calculated
+     */
+    private static ByteBuffer getKey(String sentence){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return ByteBuffer.wrap(digest.digest(sentence.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            System.err.println(ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+import is2.data.SentenceData09;
+import is2.tools.Tool;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import se.lth.cs.srl.CompletePipeline;
+import se.lth.cs.srl.corpus.Sentence;
+import se.lth.cs.srl.preprocessor.Preprocessor;
+
+/**
+ * Runs the stages of the SRL library (tokenizer, lemmatizer, tagger, dependency parser and semantic role labeler)
+ * in two parts: tagging, which is cheap, and labeling, which is only needed for the sentences whose roles are used.
+ * The stages can run in their own thread, so consecutive sentences are handled by different stages
+ * at the same time. Every stage uses the only instance of its model in the complete pipeline,
+ * so the models aren't loaded more than once, and a model is only used by one thread at a time
+ * (also when more pipelines share the complete pipeline). The sentences come out in the order of the input.
+ * @author jeknocka
+ */
+public class SRLPipeline {
+
+    // Number of sentences that can wait between two stages
+    private static final int queuesize = 64;
+
+    private final CompletePipeline pipeline;
+    private final boolean threads; // true to run every stage in its own thread
+    // Models of the preprocessor (null if not used)
+    private final Tool lemmatizer;
+    private final is2.tag.Tagger tagger;
+    private final is2.mtag.Tagger mtagger;
+    private final is2.parser.Parser parser;
+    // Threads of the stages that were started (those that ended are removed when the next one starts)
+    private final List<Thread> running = new ArrayList<Thread>();
+
+    // Class to represent a sentence that goes through the stages
+    private static class Item{
+        private final String text;
+        private SentenceData09 data;
+        private Sentence sentence;
+        private Throwable error;
+
+        public Item(String text){
+            this.text = text;
+        }
+    }
+
+    // Marks the end of the sentences
+    private static final Item end = new Item(null);
+
+    // A stage of the pipeline
+    private abstract static class Stage{
+        private final String name; // name of the thread of the stage
+
+        public Stage(String name){
+            this.name = name;
+        }
+
+        /**
+         * Handles a sentence in this stage
+         * @param item the sentence
+         * @throws Exception the library failed
+         */
+        protected abstract void process(Item item) throws Exception;
+    }
+
+    // Runs a stage in its own thread
+    private static class StageRunner implements Runnable{
+        private final Stage stage;
+        private final BlockingQueue<Item> in;
+        private final BlockingQueue<Item> out;
+
+        public StageRunner(Stage stage, BlockingQueue<Item> in, BlockingQueue<Item> out){
+            this.stage = stage;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Item item = in.take();
+                while (item != end){
+                    process(stage, item);
+                    out.put(item);
+                    item = in.take();
+                }
+                out.put(end);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The stages, each model is only used by one thread at a time
+    private final Stage tokenizing = new Stage("srl-tokenizer") {
+        @Override
+        protected void process(Item item) {
+            item.data = new SentenceData09();
+            synchronized (pipeline.pp){
+                item.data.init(pipeline.pp.tokenize(item.text));
+            }
+        }
+    };
+    private final Stage lemmatizing = new Stage("srl-lemmatizer") {
+        @Override
+        protected void process(Item item) {
+            if (lemmatizer != null){
+                synchronized (lemmatizer){
+                    lemmatizer.apply(item.data);
+                }
+            }
+        }
+    };
+    private final Stage tagging = new Stage("srl-tagger") {
+        @Override
+        protected void process(Item item) {
+            // Same steps as the preprocessor of the library
+            SentenceData09 data = item.data;
+            if (tagger != null){
+                synchronized (tagger){
+                    tagger.apply(data);
+                }
+            }
+            if (mtagger != null){
+                synchronized (mtagger){
+                    mtagger.apply(data);
+                }
+                for (int i = 1; i < data.pfeats.length; i++){
+                    if (data.pfeats[i] != null && !data.pfeats[i].equals("_")){
+                        data.feats[i] = data.pfeats[i].split("\\|");
+                    }
+                }
+            }
+            else{
+                data.pfeats = new String[data.forms.length];
+                Arrays.fill(data.pfeats, "_");
+            }
+        }
+    };
+    private final Stage parsing = new Stage("srl-parser") {
+        @Override
+        protected void process(Item item) {
+            if (parser != null){
+                synchronized (parser){
+                    item.data = parser.apply(item.data);
+                }
+            }
+            else{
+                item.data = new SentenceData09(item.data);
+            }
+        }
+    };
+    private final Stage labeling = new Stage("srl-labeler") {
+        @Override
+        protected void process(Item item) {
+            item.sentence = new Sentence(item.data, false);
+            synchronized (pipeline.srl){
+                pipeline.srl.parseSentence(item.sentence);
+            }
+        }
+    };
+
+    /**
+     * Creates a pipeline with the models of the given complete pipeline
+     * @param pipeline the complete pipeline of the SRL library
+     * @param threads true to run every stage in its own thread, false to run the stages one after the other
+     * @throws ReflectiveOperationException the models of the preprocessor can't be reached (other version of the library)
+     */
+    public SRLPipeline(CompletePipeline pipeline, boolean threads) throws ReflectiveOperationException {
+        this.pipeline = pipeline;
+        this.threads = threads;
+        this.lemmatizer = (Tool)getPreprocessorField("lemmatizer");
+        this.tagger = (is2.tag.Tagger)getPreprocessorField("tagger");
+        this.mtagger = (is2.mtag.Tagger)getPreprocessorField("mtagger");
+        this.parser = (is2.parser.Parser)getPreprocessorField("parser");
+    }
+
+    /**
+     * Get a model of the preprocessor (the preprocessor only has a method that runs all models)
+     * @param name the name of the field
+     * @return the model
+     * @throws ReflectiveOperationException the field can't be reached
+     */
+    private Object getPreprocessorField(String name) throws ReflectiveOperationException {
+        Field field = Preprocessor.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(pipeline.pp);
+    }
+
+    /**
+     * Starts tokenizing, lemmatizing and tagging the given sentences
+     * @param sentences the sentences
+     * @return the tagged sentences in the same order, null for a sentence that couldn't be tagged
+     */
+    public Iterator<SentenceData09> tag(List<String> sentences){
+        List<Item> items = new ArrayList<Item>();
+        for (String sentence : sentences){
+            items.add(new Item(sentence));
+        }
+        return new ResultIterator<SentenceData09>(run(items, tokenizing, lemmatizing, tagging)) {
+            @Override
+            protected SentenceData09 getResult(Item item) {
+                return item.data;
+            }
+        };
+    }
+
+    /**
+     * Starts parsing and labeling the given tagged sentences
+     * @param sentences the tagged sentences (these are changed)
+     * @return the labeled sentences in the same order, null for a sentence that couldn't be labeled
+     */
+    public Iterator<Sentence> label(List<SentenceData09> sentences){
+        List<Item> items = new ArrayList<Item>();
+        for (SentenceData09 sentence : sentences){
+            Item item = new Item(null);
+            item.data = sentence;
+            items.add(item);
+        }
+        return new ResultIterator<Sentence>(run(items, parsing, labeling)) {
+            @Override
+            protected Sentence getResult(Item item) {
+                return item.sentence;
+            }
+        };
+    }
+
+    /**
+     * Get a sentence with only the tokens and POS tags of a tagged sentence
+     * @param data the tagged sentence
+     * @return the sentence, without predicates
+     */
+    public static Sentence getTaggedSentence(SentenceData09 data){
+        return new Sentence(data, true);
+    }
+
+    // Iterator over the results of the items, the errors of the library are printed
+    private abstract static class ResultIterator<T> implements Iterator<T>{
+        private final Iterator<Item> items;
+
+        public ResultIterator(Iterator<Item> items){
+            this.items = items;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return items.hasNext();
+        }
+
+        @Override
+        public T next() {
+            Item item = items.next();
+            if (item.error instanceof Error){
+                throw (Error)item.error;
+            }
+            else if (item.error != null){
+                System.err.println(item.error);
+                return null;
+            }
+            return getResult(item);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Get the result of a sentence that went through the stages
+         * @param item the sentence
+         * @return the result
+         */
+        protected abstract T getResult(Item item);
+    }
+
+    /**
+     * Runs the given stages on the items
+     * @param items the items
+     * @param stages the stages, in order
+     * @return the items after all stages, in the same order
+     */
+    private Iterator<Item> run(final List<Item> items, final Stage... stages){
+        if (!threads){
+            // Every item goes through all stages when it is requested
+            final Iterator<Item> input = items.iterator();
+            return new Iterator<Item>() {
+                @Override
+                public boolean hasNext() {
+                    return input.hasNext();
+                }
+
+                @Override
+                public Item next() {
+                    Item item = input.next();
+                    for (Stage stage : stages){
+                        process(stage, item);
+                    }
+                    return item;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        final BlockingQueue<Item> input = new ArrayBlockingQueue<Item>(queuesize);
+        startThread("srl-input", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Item item : items){
+                        input.put(item);
+                    }
+                    input.put(end);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        BlockingQueue<Item> in = input;
+        for (Stage stage : stages){
+            BlockingQueue<Item> out = new ArrayBlockingQueue<Item>(queuesize);
+            startThread(stage.name, new StageRunner(stage, in, out));
+            in = out;
+        }
+        final BlockingQueue<Item> done = in;
+
+        return new Iterator<Item>() {
+            private Item next;
+
+            @Override
+            public boolean hasNext() {
+                return getNext() != end;
+            }
+
+            @Override
+            public Item next() {
+                Item item = getNext();
+                if (item == end){
+                    throw new NoSuchElementException();
+                }
+                next = null;
+                return item;
+            }
+
+            /**
+             * Wait for the next item
+             * @return the item, end if there are no more items
+             */
+            private Item getNext(){
+                if (next == null){
+                    try {
+                        next = done.take();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                return next;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Handles an item in a stage, unless it failed in an earlier stage
+     * @param stage the stage
+     * @param item the item
+     */
+    private static void process(Stage stage, Item item){
+        if (item.error == null){ // Skip the sentences that failed in an earlier stage
+            try {
+                stage.process(item);
+            } catch (Throwable ex) { // Passed to the thread that reads the sentences
+                item.error = ex;
+            }
+        }
+    }
+
+    /**
+     * Starts a stage in its own thread (the application can stop without waiting for it)
+     * @param name name of the thread
+     * @param stage the stage
+     */
+    private void startThread(String name, Runnable stage){
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        synchronized (running){
+            for (Iterator<Thread> started = running.iterator(); started.hasNext();){
+                if (!started.next().isAlive()){
+                    started.remove();
+                }
+            }
+            running.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the threads of the stages, also those that wait for a sentence or for room in the next queue.
+     * The sentences that weren't fetched yet are lost, the pipeline can still be used for new sentences.
+     */
+    public void close(){
+        synchronized (running){
+            for (Thread thread : running){
+                thread.interrupt();
+            }
+            running.clear();
+        }
+    }
+}
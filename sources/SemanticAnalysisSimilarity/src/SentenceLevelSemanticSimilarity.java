@@ -6,20 +6,23 @@ import edu.smu.tspell.wordnet.Synset;
 import edu.smu.tspell.wordnet.SynsetType;
 import edu.smu.tspell.wordnet.VerbSynset;
 import edu.smu.tspell.wordnet.WordNetDatabase;
+import is2.data.SentenceData09;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import se.lth.cs.srl.CompletePipeline;
 import se.lth.cs.srl.corpus.Predicate;
 import se.lth.cs.srl.corpus.Sentence;
 import se.lth.cs.srl.corpus.Word;
 import se.lth.cs.srl.corpus.Yield;
+import se.lth.cs.srl.options.FullPipelineOptions;
 
 /**
  * Synchronizes a given book and subtitle using sentence level semantic analysis
@@ -30,136 +33,337 @@ public class SentenceLevelSemanticSimilarity {
     private final int minnumberofmatchingwords; // The smallest number of words a match must consist of 
     private final float relsearchwindow; // Search window for exact matches with less words than minnumberofmatchingwords
     private final float minimumscorefortimewindow; // Minimum score of a match to be create a time window around it
-    private final CompletePipeline srllib; // handle for the SRL library
-    private final WordNetDatabase wn = WordNetDatabase.getFileInstance(); // The WordNet database
+    private final FullPipelineOptions srloptions; // options of the SRL library
+    private CompletePipeline srllib; // handle for the SRL library, null until a sentence has to be parsed
+    private boolean pipelined; // true to run the stages of the SRL library in parallel
+    private SRLPipeline srlpipeline; // the stages of the SRL library, null if they can't be run separately
+    private boolean deferbook; // true to label the roles of a book sentence when it is first compared
+    private SRLCache srlcache; // analyzed sentences of previous runs (null if not used)
+    private int cascadetopn; // Number of subtitles with the best token similarity that are compared on their roles (0 for all)
+    private float cascadethreshold; // Minimum token similarity of a subtitle to be compared on its roles
+    private int lshbands; // Number of bands of the MinHash signatures of the sentences (0 to compare all subtitles)
+    private int lshrows; // Number of hash values in a band
+    private float bandwidth; // Width of the band around the expected subtitle on each side, relative to the number of subtitles (0 for all subtitles)
+    private boolean cascaderecall; // true to compare all subtitles as well, to count how often the candidates contain the best match
+    private final WordNetDatabase wn = WordNetDatabase.getFileInstance(); // The WordNet database (shared by all instances)
+    private MatchOutput output = new TextMatchOutput(System.out); // Output for the matches and the progress
+    // Complete pipelines of the SRL library that were loaded, by their options, so the models are loaded once
+    // when more than one synchronisation runs in the same application
+    private static final Map<FullPipelineOptions, CompletePipeline> loadedpipelines = new HashMap<FullPipelineOptions, CompletePipeline>();
     
     // Data for calculating similarity values
-    // Semantic role labelling
-    private List<Map<String, Map<String, List<String>>>> bookSRL;
-    private List<Map<String, Map<String, List<String>>>> subtitleSRL;
-    // Part-of-speech tags and tokens
-    private List<List<String>> bookTokens;
-    private List<List<String>> bookPOS;
-    private List<List<String>> subtitleTokens;
-    private List<List<String>> subtitlePOS;
+    // Ids of the words and role labels
+    private Vocabulary words;
+    private Vocabulary roles;
+    // Semantic role labelling, part-of-speech tags and tokens
+    private AnalyzedCorpus bookCorpus;
+    private AnalyzedCorpus subtitleCorpus;
     // At least one predicate with the minimum number of words
-    private List<Boolean> enoughBookWordsWithRoles;
-    private List<Boolean> enoughSubtitleWordsWithRoles;
-    // Word counts per predicate
-    private List<Map<String, Integer>> bookWordCounts;
-    private List<Map<String, Integer>> subtitleWordCounts;
-    // Related words for each word
-    private final Map<String, Map<Character, Set<String>>> relatedwords = new HashMap<String, Map<Character, Set<String>>>();
+    private boolean[] enoughBookWordsWithRoles;
+    private boolean[] enoughSubtitleWordsWithRoles;
+    // The fewest and most roles of the predicates with the minimum number of words
+    private int[] fewestBookRoles;
+    private int[] mostBookRoles;
+    private int[] fewestSubtitleRoles;
+    private int[] mostSubtitleRoles;
+    // Id of the "rel" role, the predicate itself
+    private int relrole;
+    // Words that contain a letter or digit (by id)
+    private boolean[] alphanumericwords;
+    // Indexes of the other termset that are used by the current role similarity calculation
+    private int[] usedindexes = new int[64];
+    private int usedstamp;
+    // Number of sentence pairs and frame pairs that were compared or skipped because of their upper bound
+    private long scoredpairs;
+    private long prunedpairs;
+    private long scoredframes;
+    private long prunedframes;
+    // Subtitles that are compared with the current book sentence in cascade mode, with their token similarity (by subtitle index)
+    private int[] candidates;
+    private double[] candidatescores;
+    // Subtitles that share a band of their MinHash signature with the current book sentence (null if not used)
+    private MinHashIndex subtitleIndex;
+    private int[] lshcandidates;
+    // The tokens of a sentence with their related words, for the MinHash signatures
+    private int[] relatedtokens = new int[64];
+    // Number of compared candidates, and the number of book sentences with a match and how many of those the cascade found as well
+    private long cascadecandidates;
+    private long cascaderelevant;
+    private long cascaderecalled;
+    // Number of book sentences that were compared with all subtitles, because the alignment band had no match
+    private long bandfallbacks;
+    // Tokens that have related words for each word id and type (see getRelatedKey), the related words are only
+    // looked up when all words are known
+    private boolean[] hasrelatedwords;
+    private static final char[] wordtypes = {'n', 'v', 'a', 'r'};
+    // Derivate forms (tokens) of each base form
     private final Map<String, Map<Character, Set<String>>> derivatewordsMap = new HashMap<String, Map<Character, Set<String>>>();
+    // Related words that occur in the book or subtitles, for each word id and type (see getRelatedKey),
+    // sorted on their id, with their position in the related words set
+    private int[][] relatedwordids;
+    private int[][] relatedwordranks;
+    // Book sentences of which the roles still have to be added to the corpus (null if there are none)
+    private PendingFrames pendingBookFrames;
+    private int previouspreparationprogress;
+    
+    // The sentences of a corpus of which the roles still have to be added
+    private static class PendingFrames{
+        private final AnalyzedCorpus corpus;
+        private final List<String> sentences;
+        // Sentences that still need their roles or were added to the cache during this run (sentences that are only
+        // tagged are labeled when they are added), null for the others
+        private final AnalyzedSentence[] analyzed;
+        // Records of the sentences in the cache file, decoded again when their roles are added (0 for the others).
+        // A sentence without a record or analyzed sentence has no roles.
+        private final long[] records;
+        private final Iterator<Sentence> labeled; // The labeled sentences, in order
+        private final boolean[] enoughwords;
+        private final int[] fewestroles;
+        private final int[] mostroles;
+        private final String progressname; // Name of the progress that is printed, null to print nothing
+
+        public PendingFrames(AnalyzedCorpus corpus, List<String> sentences, AnalyzedSentence[] analyzed, long[] records,
+                Iterator<Sentence> labeled, boolean[] enoughwords, int[] fewestroles, int[] mostroles, String progressname){
+            this.corpus = corpus;
+            this.sentences = sentences;
+            this.analyzed = analyzed;
+            this.records = records;
+            this.labeled = labeled;
+            this.enoughwords = enoughwords;
+            this.fewestroles = fewestroles;
+            this.mostroles = mostroles;
+            this.progressname = progressname;
+        }
+    }
     
     /**
      * Initialize the matcher with the given parameter values
-     * @param srllib handle for the SRL library
+     * @param srloptions options of the SRL library, the models are only loaded when a sentence has to be parsed
      * @param mindelta Minimum similarity that is needed to be considered a match
      * @param minnumberofmatchingwords Minimum number of matching words to be a match
      * @param relsearchwindow Size of the search window that is used when there are not enough common words
      * @param minimumscorefortimewindow Minimum score of a match to be create a time window around it
      */
-    public SentenceLevelSemanticSimilarity(CompletePipeline srllib, float mindelta, int minnumberofmatchingwords, float relsearchwindow, float minimumscorefortimewindow){
-        this.srllib = srllib;
+    public SentenceLevelSemanticSimilarity(FullPipelineOptions srloptions, float mindelta, int minnumberofmatchingwords, float relsearchwindow, float minimumscorefortimewindow){
+        this.srloptions = srloptions;
         this.mindelta = mindelta;
         this.minnumberofmatchingwords = minnumberofmatchingwords;
         this.relsearchwindow = relsearchwindow;
         this.minimumscorefortimewindow = minimumscorefortimewindow;
     }
     
+    /**
+     * Sets whether the stages of the SRL library parse consecutive sentences at the same time
+     * @param pipelined true to run each stage in its own thread, false to parse sentence by sentence
+     */
+    public void setPipelined(boolean pipelined){
+        this.pipelined = pipelined;
+    }
+    
+    /**
+     * Sets whether the roles of a book sentence are labeled when it is first compared, instead of before the subtitles
+     * are analyzed. The book is then labeled while the first sentences are compared.
+     * @param deferbook true to label the roles of the book sentences when they are compared
+     */
+    public void setDeferBook(boolean deferbook){
+        this.deferbook = deferbook;
+    }
+    
+    /**
+     * Sets the cascade mode: the subtitles are ranked on their token similarity (the words and their related words
+     * in both sentences) first, only the best ones are compared on their roles
+     * @param topn the number of best subtitles that are compared for each book sentence, 0 for no limit
+     * @param threshold the minimum token similarity of a subtitle to be compared, 0 for no minimum
+     * (the cascade mode is off if both are 0)
+     */
+    public void setCascade(int topn, float threshold){
+        this.cascadetopn = topn;
+        this.cascadethreshold = threshold;
+    }
+    
+    /**
+     * Sets the number of bands and rows of the MinHash signatures that find the candidate subtitles for a book sentence.
+     * The signatures are made of the tokens of a sentence and their related words, a subtitle is a candidate
+     * if all rows of one of its bands are equal to those of the book sentence. Can be combined with the cascade mode.
+     * @param bands the number of bands, more bands find more candidates (0 to compare all subtitles)
+     * @param rows the number of rows of a band, more rows find fewer candidates (0 to compare all subtitles)
+     */
+    public void setLSH(int bands, int rows){
+        this.lshbands = bands;
+        this.lshrows = rows;
+    }
+    
+    /**
+     * Sets the alignment mode: only the subtitles in a band around the expected position of a book sentence are compared,
+     * the band follows the confident matches. All subtitles are compared if none in the band is similar enough.
+     * Can be combined with the cascade mode and the MinHash candidates.
+     * @param bandwidth the width of the band on each side, relative to the number of subtitles (0 to compare all subtitles)
+     */
+    public void setBand(float bandwidth){
+        this.bandwidth = bandwidth;
+    }
+    
+    /**
+     * Sets whether the recall of the alignment band, the cascade mode and the MinHash candidates is measured,
+     * all subtitles are compared as well to check if the best match was among the candidates
+     * @param cascaderecall true to measure the recall
+     */
+    public void setCascadeRecall(boolean cascaderecall){
+        this.cascaderecall = cascaderecall;
+    }
+    
+    /**
+     * Sets the cache with the analyzed sentences of previous runs
+     * @param srlcache the cache, null to parse every sentence
+     */
+    public void setSRLCache(SRLCache srlcache){
+        this.srlcache = srlcache;
+    }
+    
+    /**
+     * Sets the output for the matches and the progress
+     * @param output the output (lines of text on the standard output by default)
+     */
+    public void setOutput(MatchOutput output){
+        this.output = output;
+    }
+    
+    /**
+     * Stops the threads of the SRL library that still run, the book sentences that weren't labeled yet are dropped.
+     * Needs to be called when a synchronisation failed, so the threads don't wait forever.
+     */
+    public void close(){
+        pendingBookFrames = null;
+        if (srlpipeline != null){
+            srlpipeline.close();
+        }
+    }
+    
     private int nrofinits;
     /**
      * Initializes all data needed for calculating similarity values
      * @param sentencelist list with sentences
      * @param book true for book, false for subtitles
+     * @throws IOException loading the models of the SRL library failed
      */
-    private void init(List<String> sentencelist, boolean book){
+    private void init(List<String> sentencelist, boolean book) throws IOException {
         nrofinits++;
-        // Initialize the lists
+        // Initialize the corpus
+        AnalyzedCorpus corpus = new AnalyzedCorpus(words, roles);
+        boolean[] enoughwords = new boolean[sentencelist.size()];
+        int[] fewestroles = new int[sentencelist.size()];
+        int[] mostroles = new int[sentencelist.size()];
         if (book){
-            bookSRL = new ArrayList<Map<String, Map<String, List<String>>>>();
-            enoughBookWordsWithRoles = new ArrayList<Boolean>();
-            bookWordCounts = new ArrayList<Map<String, Integer>>();
-            bookTokens = new ArrayList<List<String>>();
-            bookPOS = new ArrayList<List<String>>();
+            bookCorpus = corpus;
+            enoughBookWordsWithRoles = enoughwords;
+            fewestBookRoles = fewestroles;
+            mostBookRoles = mostroles;
         }
         else{
-            subtitleSRL = new ArrayList<Map<String, Map<String, List<String>>>>();
-            enoughSubtitleWordsWithRoles = new ArrayList<Boolean>();
-            subtitleWordCounts = new ArrayList<Map<String, Integer>>();
-            subtitleTokens = new ArrayList<List<String>>();
-            subtitlePOS = new ArrayList<List<String>>();
+            subtitleCorpus = corpus;
+            enoughSubtitleWordsWithRoles = enoughwords;
+            fewestSubtitleRoles = fewestroles;
+            mostSubtitleRoles = mostroles;
         }
-        int index = 0;
-        int previousprogress = -1;
-	for (String sentence : sentencelist){
-            // Parse the sentence
-            Sentence parsedSentence = parseSentence(sentence);
-            // Fetch the SRL labels
-            Map<String, Map<String, List<String>>> SRLMap = getSRLMap(parsedSentence);            
-            // Count the words for each predicate and check if at least one of those predicates has the minimum number of words
-            Map<String, Integer> wordCount = new HashMap<String, Integer>();
-            boolean enoughwords = fillWordCounts(SRLMap, wordCount);
-            // Fetch the POS tags 
-            String[] posarray = parsedSentence.getPOSArray();
-            String[] wordarray = parsedSentence.getFormArray();
-            List<String> poslist = new ArrayList<String>();
-            List<String> tokenlist = new ArrayList<String>();
-            for (int i = 0; i < wordarray.length; i++){
-                if (wordarray[i].matches(".*[a-zA-Z0-9].*")){ // Don't do empty strings or punctuation
-                    tokenlist.add(wordarray[i].toLowerCase());
-                    poslist.add(posarray[i]);
+        // Only the sentences that aren't in the cache are parsed, the sentences that are too short
+        // to be compared on their roles are only tagged. Only the records of the sentences in the cache file are kept,
+        // they are decoded again when they are added to the corpus.
+        AnalyzedSentence[] analyzed = new AnalyzedSentence[sentencelist.size()];
+        long[] records = new long[sentencelist.size()];
+        List<String> uncachedsentences = new ArrayList<String>();
+        for (int index = 0; index < sentencelist.size(); index++){
+            AnalyzedSentence cachedSentence = (srlcache != null)?srlcache.get(sentencelist.get(index)):null;
+            if (cachedSentence != null && (cachedSentence.isLabeled() || !needsLabels(cachedSentence))){
+                records[index] = srlcache.getRecord(sentencelist.get(index));
+                if (records[index] == 0){ // Added during this run, the cache keeps it on the heap as well
+                    analyzed[index] = cachedSentence;
                 }
             }
-            // Get the related words for each word
-            // Add derivate forms to the related words map
-            for (int i = 0; i < tokenlist.size(); i++){
-                String token = tokenlist.get(i);
-                String pos = poslist.get(i);
-                addRelatedWords(token, pos, derivatewordsMap);
-            }
-            // Fill the lists
-            if (book){
-                bookSRL.add(SRLMap);
-                enoughBookWordsWithRoles.add(enoughwords);
-                bookWordCounts.add(wordCount);
-                bookTokens.add(tokenlist);
-                bookPOS.add(poslist);
-            }
             else{
-                subtitleSRL.add(SRLMap);
-                enoughSubtitleWordsWithRoles.add(enoughwords);
-                subtitleWordCounts.add(wordCount);
-                subtitleTokens.add(tokenlist);
-                subtitlePOS.add(poslist);
+                uncachedsentences.add(sentencelist.get(index));
             }
-            int progress = (int)Math.floor((index*100)/sentencelist.size());
-            if (progress > previousprogress){
-                if (book)
-                    System.out.println("bookpreparationprogress - "+progress+"%");
-                else
-                    System.out.println("subpreparationprogress - "+progress+"%");
-                previousprogress = progress;
+        }
+        // The threads of the SRL library are stopped if the preparation fails, else they could wait forever
+        boolean prepared = false;
+        try {
+            Iterator<SentenceData09> taggedSentences = null;
+            Iterator<Sentence> parsedSentences = null;
+            if (!uncachedsentences.isEmpty()){
+                loadPipeline();
+                if (srlpipeline != null){
+                    taggedSentences = srlpipeline.tag(uncachedsentences);
+                }
+                else{ // The whole library is run for every sentence
+                    parsedSentences = parseSentences(uncachedsentences);
+                }
             }
-            index++;
-	}
-        // Add derivate forms to the related words map
-        if (nrofinits == 2){            
-            for (Entry<String, Map<Character, Set<String>>> baseform : derivatewordsMap.entrySet()){
-                Map<Character, Set<String>> baseformtypemap = relatedwords.get(baseform.getKey());
-                if (baseformtypemap != null){ // If the baseform isn't in the map, there's no need to add it
-                    for (Entry<Character, Set<String>> basetype : baseform.getValue().entrySet()){
-                        Set<String> currentSet = baseformtypemap.get(basetype.getKey());
-                        Set<String> newrelated = new HashSet<String>(basetype.getValue());
-                        if (currentSet != null){ // Add existing related words
-                            newrelated.addAll(currentSet);
+            String progressname = (book)?"bookpreparationprogress":"subpreparationprogress";
+            boolean labelnow = !(book && deferbook);
+            int progressspan = (labelnow && taggedSentences != null)?50:100; // The labeling is the second half
+            previouspreparationprogress = -1;
+            List<SentenceData09> unlabeledsentences = new ArrayList<SentenceData09>();
+            int index = 0;
+            for (String sentence : sentencelist){
+                AnalyzedSentence analyzedSentence = analyzed[index];
+                if (records[index] != 0){
+                    analyzedSentence = getCachedSentence(sentence, records[index]);
+                }
+                else if (analyzedSentence == null){
+                    if (taggedSentences != null){
+                        // Fetch the POS tags, the roles are labeled later if they are needed
+                        SentenceData09 taggedSentence = taggedSentences.next();
+                        analyzedSentence = analyzeSentence(SRLPipeline.getTaggedSentence(taggedSentence), false);
+                        if (needsLabels(analyzedSentence)){
+                            unlabeledsentences.add(taggedSentence);
+                            analyzed[index] = analyzedSentence;
                         }
-                        baseformtypemap.put(basetype.getKey(), newrelated);
+                    }
+                    else{
+                        // Parse the sentence and fetch the SRL labels and POS tags
+                        analyzedSentence = analyzeSentence(parsedSentences.next(), true);
+                        analyzed[index] = analyzedSentence;
+                    }
+                    if (srlcache != null && (analyzedSentence.isLabeled() || !needsLabels(analyzedSentence))){
+                        srlcache.put(sentence, analyzedSentence);
+                    }
+                }
+                // Add the tokens to the corpus
+                corpus.addTokens(analyzedSentence);
+                // Add derivate forms of the tokens to the derivate words map
+                int[] tokens = corpus.getTokens();
+                byte[] tokentypes = corpus.getTokenTypes();
+                for (int token = corpus.getTokenOffsets()[index]; token < corpus.getTokenOffsets()[index+1]; token++){
+                    synchronized (wn){ // Other synchronisations can use WordNet at the same time
+                        addDerivateForms(tokens[token], (char)tokentypes[token]);
                     }
                 }
+                printPreparationProgress(progressname, (index*progressspan)/sentencelist.size());
+                index++;
+            }
+            // Label the roles of the sentences that need them and add them to the corpus
+            Iterator<Sentence> labeledSentences = (!unlabeledsentences.isEmpty())?srlpipeline.label(unlabeledsentences):null;
+            PendingFrames pendingframes = new PendingFrames(corpus, sentencelist, analyzed, records, labeledSentences, enoughwords, fewestroles, mostroles,
+                    (progressspan < 100)?progressname:null);
+            if (labelnow){
+                addFrames(pendingframes, sentencelist.size()-1);
+            }
+            else{
+                pendingBookFrames = pendingframes;
+            }
+            prepared = true;
+        } finally {
+            if (!prepared && srlpipeline != null){
+                srlpipeline.close();
             }
         }
+        if (nrofinits == 2){            
+            // All words are known now
+            alphanumericwords = new boolean[words.size()];
+            for (int word = 0; word < words.size(); word++){
+                alphanumericwords[word] = words.getString(word).matches(".*[a-z0-9A-Z].*");
+            }
+            indexRelatedWords();
+        }
     }
     
     /**
@@ -167,17 +371,40 @@ public class SentenceLevelSemanticSimilarity {
      * progress and matches are printeded to stdout
      * @param book the list with parsed sentences from the book
      * @param subtitles the list with parsed sentences from the subtitle file
+     * @throws IOException loading the models of the SRL library failed
      */
-    public void synchronize(List<String> book, List<String> subtitles){
+    public void synchronize(List<String> book, List<String> subtitles) throws IOException {
         // Perform initialisation
         nrofinits = 0;
+        words = new Vocabulary();
+        roles = new Vocabulary();
+        hasrelatedwords = new boolean[64];
         init(book,true);
         init(subtitles,false);
+        // Subtitles by their normalized form, for the exact matches of short sentences
+        ExactMatchIndex subtitleindex = new ExactMatchIndex(subtitles);
+        // Band around the expected subtitle of each book sentence (null to compare all subtitles)
+        AlignmentBand band = (bandwidth > 0)?new AlignmentBand(book.size(), subtitles.size(), bandwidth):null;
+        relrole = roles.getId("rel");
+        subtitleIndex = null;
+        if (lshbands > 0 && lshrows > 0){
+            // Index the subtitles that can be compared
+            subtitleIndex = new MinHashIndex(lshbands, lshrows, subtitles.size());
+            lshcandidates = new int[subtitles.size()];
+            for (int subindex = 0; subindex < subtitles.size(); subindex++){
+                if (getNumberOfTokens(subtitleCorpus, subindex) >= minnumberofmatchingwords){
+                    subtitleIndex.add(subindex, relatedtokens, getRelatedTokens(subtitleCorpus, subindex));
+                }
+            }
+        }
         
 	int lastindex = -1;
         int previousprogress = -1;
         for (int bookindex = 0; bookindex < book.size(); bookindex++){ 
-            int numberofbookwords = bookPOS.get(bookindex).size();
+            if (pendingBookFrames != null){ // Label the roles of this book sentence if that hasn't happened yet
+                addFrames(pendingBookFrames, bookindex);
+            }
+            int numberofbookwords = getNumberOfTokens(bookCorpus, bookindex);
             // The list of best matching subtitles (all with the maxscore)
             List<Integer> submatches = new ArrayList<Integer>();
             // Keep the best score for a subtitle in combination with the current book index
@@ -188,209 +415,820 @@ public class SentenceLevelSemanticSimilarity {
                 int start = (lastindex-searchwindow > 0)?lastindex-searchwindow:0;
                 int end = (lastindex+searchwindow < subtitles.size())?lastindex+searchwindow:subtitles.size();
                 // Find exact matching subtitles for this quote
-                for (int subindex = start; subindex < end; subindex++){
-                    String cleanedbooksentence = book.get(bookindex).toLowerCase().replaceAll("[^a-zA-Z0-9]","").trim();
-                    String cleanedsubsentence = subtitles.get(subindex).toLowerCase().replaceAll("[^a-zA-Z0-9]","").trim();
-                    if (cleanedbooksentence.equals(cleanedsubsentence)){
-                        submatches.add(subindex);
-                    }
-                }
+                subtitleindex.findMatches(book.get(bookindex), start, end, submatches);
                 maxscore = 1;
             }
             else if (numberofbookwords >= minnumberofmatchingwords) {
-                // Find the best matching subtitles for this quote
-                for (int subindex = 0; subindex < subtitles.size(); subindex++){
-                    int numberofsubwords = subtitlePOS.get(subindex).size();
-                    if (numberofsubwords >= minnumberofmatchingwords){
-                        // The relative number of matching words (the score)
-                        double score = calculateSimilarity(bookindex,subindex);
-
-                        // If the similarity measure is at least delta and the new match for the quote
-                        // is at least as good as the previous one, add the subtitle to the array of matches for the quote
-                        if (score >= mindelta && score > maxscore){
-                            // Reset resultsarray if an absolute better match has been found
-                            if (score > maxscore){ 
-                                submatches = new ArrayList<Integer>();
-                            }					
-                            submatches.add(subindex);	
-                            maxscore = score;
-                        }
+                if (band != null){
+                    // Find the best matching subtitles in the band, or in all subtitles if the band has no match
+                    maxscore = findBestMatches(bookindex, band.getStart(bookindex), band.getEnd(bookindex), submatches);
+                    if (submatches.isEmpty()){
+                        bandfallbacks++;
+                        maxscore = findBestMatches(bookindex, 0, subtitles.size(), submatches);
                     }
                 }
+                else{
+                    maxscore = findBestMatches(bookindex, 0, subtitles.size(), submatches);
+                }
+                if (cascaderecall && (band != null || subtitleIndex != null || cascadetopn > 0 || cascadethreshold > 0)){
+                    measureRecall(bookindex, submatches, maxscore);
+                }
             }
             for (int matchvalue : submatches){
                 if (numberofbookwords >= minnumberofmatchingwords && maxscore >= minimumscorefortimewindow){
                     lastindex = matchvalue;
+                    if (band != null){
+                        band.addMatch(bookindex, matchvalue);
+                    }
                 }
-                System.out.format("match - %d - %d - %.2f\n",matchvalue,bookindex,maxscore);
+                output.addMatch(matchvalue,bookindex,maxscore);
             }
             
             int progress = (int)Math.floor(((bookindex+1)*100)/book.size());
             if (progress > previousprogress){
-                System.out.println("similarityprogress - "+progress+"%");
+                output.setProgress("similarityprogress", progress);
                 previousprogress = progress;
             }            
         }
+        output.flush();
+        pendingBookFrames = null;
+    }
+
+    /**
+     * Find the best matching subtitles for a book sentence among the subtitles in a range,
+     * only the candidates are compared in cascade mode or with MinHash candidates
+     * @param bookindex the index of the book sentence
+     * @param start the first subtitle that can be compared
+     * @param end the end of the subtitles that can be compared (exclusive)
+     * @param submatches list to which the best matching subtitles are added (all with the returned score)
+     * @return the score of the best matching subtitles (0 if there are none)
+     */
+    private double findBestMatches(int bookindex, int start, int end, List<Integer> submatches){
+        if (subtitleIndex != null || cascadetopn > 0 || cascadethreshold > 0){
+            // Only compare the subtitles that are likely to be similar
+            int numberofcandidates = selectCandidates(bookindex, start, end);
+            return compareSubtitles(bookindex, candidates, 0, numberofcandidates, submatches);
+        }
+        return compareSubtitles(bookindex, null, start, end, submatches);
+    }
+
+    /**
+     * Compare a book sentence with the given subtitles and keep the best matches
+     * @param bookindex the index of the book sentence
+     * @param subindexes the indexes of the subtitles to compare in ascending order, null to compare the subtitles in the range
+     * @param start the first subtitle to compare (the first index in subindexes if given)
+     * @param end the end of the subtitles to compare (exclusive)
+     * @param submatches list to which the best matching subtitles are added (all with the returned score)
+     * @return the score of the best matching subtitles (0 if there are none)
+     */
+    private double compareSubtitles(int bookindex, int[] subindexes, int start, int end, List<Integer> submatches){
+        // Keep the best score for a subtitle in combination with the current book index
+        double maxscore = 0;
+        for (int i = start; i < end; i++){
+            int subindex = (subindexes != null)?subindexes[i]:i;
+            int numberofsubwords = getNumberOfTokens(subtitleCorpus, subindex);
+            if (numberofsubwords >= minnumberofmatchingwords){
+                // Skip the subtitle if its similarity can't be high enough
+                double upperbound = getUpperBound(bookindex,subindex);
+                if (upperbound < mindelta || upperbound <= maxscore){
+                    prunedpairs++;
+                }
+                else{
+                    scoredpairs++;
+                    // The relative number of matching words (the score)
+                    double score = calculateSimilarity(bookindex,subindex,maxscore);
+
+                    // If the similarity measure is at least delta and the new match for the quote
+                    // is at least as good as the previous one, add the subtitle to the array of matches for the quote
+                    if (score >= mindelta && score > maxscore){
+                        // Reset resultsarray if an absolute better match has been found
+                        if (score > maxscore){ 
+                            submatches.clear();
+                        }					
+                        submatches.add(subindex);	
+                        maxscore = score;
+                    }
+                }
+            }
+        }
+        return maxscore;
+    }
+    
+    /**
+     * Select the subtitles that are compared with a book sentence: the subtitles that share a band of their MinHash
+     * signature with the book sentence (if used), and in cascade mode the subtitles with at least the
+     * minimum token similarity, limited to the given number of best ones (the first ones on a tie)
+     * @param bookindex the index of the book sentence
+     * @param start the first subtitle that can be a candidate
+     * @param end the end of the subtitles that can be candidates (exclusive)
+     * @return the number of candidates, their indexes are at the start of candidates in ascending order
+     */
+    private int selectCandidates(int bookindex, int start, int end){
+        int numberofsubtitles = subtitleCorpus.size();
+        if (candidates == null || candidates.length < numberofsubtitles){
+            candidates = new int[numberofsubtitles];
+            candidatescores = new double[numberofsubtitles];
+        }
+        // The subtitles in the range, or the subtitles that share a band of their signature
+        int first = start;
+        int last = end;
+        if (subtitleIndex != null){
+            first = 0;
+            last = subtitleIndex.query(relatedtokens, getRelatedTokens(bookCorpus, bookindex), lshcandidates);
+        }
+        boolean cascade = cascadetopn > 0 || cascadethreshold > 0;
+        int numberofbookwords = getNumberOfTokens(bookCorpus, bookindex);
+        int numberofcandidates = 0;
+        for (int i = first; i < last; i++){
+            int subindex = (subtitleIndex != null)?lshcandidates[i]:i;
+            int numberofsubwords = getNumberOfTokens(subtitleCorpus, subindex);
+            if (subindex < start || subindex >= end){
+                continue; // Outside the range
+            }
+            if (!cascade){
+                if (numberofsubwords >= minnumberofmatchingwords){
+                    candidates[numberofcandidates++] = subindex;
+                }
+            }
+            // The token similarity is at most the number of tokens of the shortest sentence divided by that of the longest
+            else if (numberofsubwords >= minnumberofmatchingwords
+                    && (double)Math.min(numberofbookwords, numberofsubwords)/Math.max(numberofbookwords, numberofsubwords) >= cascadethreshold){
+                double score = calculateTokenSimilarity(bookindex, subindex);
+                if (score >= cascadethreshold){
+                    candidatescores[subindex] = score;
+                    candidates[numberofcandidates++] = subindex;
+                }
+            }
+        }
+        if (cascadetopn > 0 && numberofcandidates > cascadetopn){
+            // Rank the candidates on their token similarity
+            Integer[] ranked = new Integer[numberofcandidates];
+            for (int i = 0; i < numberofcandidates; i++){
+                ranked[i] = candidates[i];
+            }
+            Arrays.sort(ranked, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer sub1, Integer sub2) {
+                    int order = Double.compare(candidatescores[sub2], candidatescores[sub1]);
+                    return (order != 0)?order:sub1.compareTo(sub2);
+                }
+            });
+            for (int i = 0; i < cascadetopn; i++){
+                candidates[i] = ranked[i];
+            }
+            numberofcandidates = cascadetopn;
+            Arrays.sort(candidates, 0, numberofcandidates);
+        }
+        cascadecandidates += numberofcandidates;
+        return numberofcandidates;
+    }
+    
+    /**
+     * Get the tokens of a sentence with their related words (with the type of each token), without duplicates
+     * @param corpus the corpus of the sentence
+     * @param index the index of the sentence
+     * @return the number of word ids, they are at the start of relatedtokens
+     */
+    private int getRelatedTokens(AnalyzedCorpus corpus, int index){
+        int tokenstart = corpus.getTokenOffsets()[index];
+        int tokenend = corpus.getTokenOffsets()[index+1];
+        int size = 0;
+        for (int token = tokenstart; token < tokenend; token++){
+            int word = corpus.getTokens()[token];
+            int[] related = relatedwordids[getRelatedKey(word, (char)corpus.getTokenTypes()[token])];
+            int numberofrelated = (related != null)?related.length:0;
+            if (relatedtokens.length < size+1+numberofrelated){
+                relatedtokens = Arrays.copyOf(relatedtokens, Math.max(size+1+numberofrelated, relatedtokens.length*2));
+            }
+            relatedtokens[size++] = word;
+            for (int i = 0; i < numberofrelated; i++){
+                relatedtokens[size++] = related[i];
+            }
+        }
+        // Remove the duplicates
+        Arrays.sort(relatedtokens, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++){
+            if (unique == 0 || relatedtokens[unique-1] != relatedtokens[i]){
+                relatedtokens[unique++] = relatedtokens[i];
+            }
+        }
+        return unique;
+    }
+    
+    /**
+     * Compare a book sentence with all subtitles to check if the candidates contained the same best matches.
+     * This comparison isn't counted in the number of compared and skipped pairs.
+     * @param bookindex the index of the book sentence
+     * @param submatches the best matching subtitles that were found by the cascade
+     * @param maxscore the score of the matches that were found by the cascade
+     */
+    private void measureRecall(int bookindex, List<Integer> submatches, double maxscore){
+        long[] counters = {scoredpairs, prunedpairs, scoredframes, prunedframes};
+        List<Integer> allmatches = new ArrayList<Integer>();
+        double allmaxscore = compareSubtitles(bookindex, null, 0, subtitleCorpus.size(), allmatches);
+        scoredpairs = counters[0];
+        prunedpairs = counters[1];
+        scoredframes = counters[2];
+        prunedframes = counters[3];
+        if (!allmatches.isEmpty()){
+            cascaderelevant++;
+            if (allmaxscore == maxscore && allmatches.equals(submatches)){
+                cascaderecalled++;
+            }
+        }
+    }
+    
+    /**
+     * Get the number of tokens of a sentence
+     * @param corpus the corpus of the sentence
+     * @param index the index of the sentence
+     * @return the number of tokens (without punctuation)
+     */
+    private static int getNumberOfTokens(AnalyzedCorpus corpus, int index){
+        return corpus.getTokenOffsets()[index+1]-corpus.getTokenOffsets()[index];
+    }
+
+    /**
+     * Get the number of sentence pairs that were compared
+     * @return the number of compared pairs
+     */
+    public long getScoredPairs() {
+        return scoredpairs;
+    }
+
+    /**
+     * Get the number of sentence pairs that were skipped because their similarity couldn't be high enough
+     * @return the number of skipped pairs
+     */
+    public long getPrunedPairs() {
+        return prunedpairs;
     }
 
+    /**
+     * Get the number of book sentences that were compared with all subtitles, because the alignment band had no match
+     * @return the number of book sentences
+     */
+    public long getBandFallbacks() {
+        return bandfallbacks;
+    }
+
+    /**
+     * Get the number of subtitles that were selected to be compared in cascade mode
+     * @return the number of candidates
+     */
+    public long getCascadeCandidates() {
+        return cascadecandidates;
+    }
+
+    /**
+     * Get the number of book sentences that have a match when all subtitles are compared (only counted if the recall is measured)
+     * @return the number of book sentences with a match
+     */
+    public long getCascadeRelevant() {
+        return cascaderelevant;
+    }
+
+    /**
+     * Get the number of book sentences for which the cascade found the same matches as the comparison with all subtitles
+     * @return the number of book sentences of which the matches were found
+     */
+    public long getCascadeRecalled() {
+        return cascaderecalled;
+    }
+
+    /**
+     * Get the number of frame pairs that were compared
+     * @return the number of compared frame pairs
+     */
+    public long getScoredFrames() {
+        return scoredframes;
+    }
+
+    /**
+     * Get the number of frame pairs that were skipped because their similarity couldn't be high enough
+     * @return the number of skipped frame pairs
+     */
+    public long getPrunedFrames() {
+        return prunedframes;
+    }
+
+    /**
+     * Calculate an upper bound of the similarity between two sentences, without comparing any words.
+     * The similarity of two frames is at most the number of common roles divided by the biggest number of roles,
+     * and the similarity of two termsets is at most the size of the smallest divided by the size of the biggest.
+     * @param bookindex the index for the book sentence
+     * @param subindex the index for the subtitle sentence
+     * @return the upper bound
+     */
+    private double getUpperBound(int bookindex, int subindex){
+        if (enoughBookWordsWithRoles[bookindex] && enoughSubtitleWordsWithRoles[subindex]){
+            if (mostBookRoles[bookindex] < fewestSubtitleRoles[subindex]){
+                return (double)mostBookRoles[bookindex]/fewestSubtitleRoles[subindex];
+            }
+            else if (mostSubtitleRoles[subindex] < fewestBookRoles[bookindex]){
+                return (double)mostSubtitleRoles[subindex]/fewestBookRoles[bookindex];
+            }
+            return 1;
+        }
+        else{
+            int numberofbookwords = getNumberOfTokens(bookCorpus, bookindex);
+            int numberofsubwords = getNumberOfTokens(subtitleCorpus, subindex);
+            return (double)Math.min(numberofbookwords, numberofsubwords)/Math.max(numberofbookwords, numberofsubwords);
+        }
+    }
+    
     /**
      * Calculate the similarity between two sentences
      * @param bookindex the index for the book sentence
      * @param subindex the index for the subtitle sentence
+     * @param maxscore the score the similarity has to exceed to be used (a lower value is returned if it doesn't)
      * @return the similarity value
      */
-    private double calculateSimilarity(int bookindex, int subindex) {
+    private double calculateSimilarity(int bookindex, int subindex, double maxscore) {
         double similarity;
         // If at least one predicate with enough words is found in both sentences, proceed with calculating
-        if (bookSRL.get(bookindex) != null && subtitleSRL.get(subindex) != null
-            && enoughBookWordsWithRoles.get(bookindex) && enoughSubtitleWordsWithRoles.get(subindex)){
-                similarity = calculateSentenceSimilarity(bookindex,subindex);
+        if (enoughBookWordsWithRoles[bookindex] && enoughSubtitleWordsWithRoles[subindex]){
+                similarity = calculateSentenceSimilarity(bookindex,subindex,maxscore);
         }
         // Use role similarity using POS tags if there are not enough labels
         else{
-            if (bookPOS.get(bookindex).size() <= subtitlePOS.get(subindex).size()){
-                similarity = calculateRoleSimilarity(bookTokens.get(bookindex), subtitleTokens.get(subindex), bookPOS.get(bookindex));
-            }
-            else{
-                similarity = calculateRoleSimilarity(subtitleTokens.get(subindex), bookTokens.get(bookindex), subtitlePOS.get(subindex));
-            }
+            similarity = calculateTokenSimilarity(bookindex,subindex);
         }
         return similarity;
     }
     
+    /**
+     * Calculate the similarity between the tokens of two sentences, as if they were a single role
+     * @param bookindex the index for the book sentence
+     * @param subindex the index for the subtitle sentence
+     * @return the similarity value
+     */
+    private double calculateTokenSimilarity(int bookindex, int subindex) {
+        int[] booktokenoffsets = bookCorpus.getTokenOffsets();
+        int[] subtokenoffsets = subtitleCorpus.getTokenOffsets();
+        if (getNumberOfTokens(bookCorpus, bookindex) <= getNumberOfTokens(subtitleCorpus, subindex)){
+            return calculateRoleSimilarity(bookCorpus.getTokens(), booktokenoffsets[bookindex], booktokenoffsets[bookindex+1],
+                    subtitleCorpus.getTokens(), subtokenoffsets[subindex], subtokenoffsets[subindex+1], bookCorpus, bookindex);
+        }
+        else{
+            return calculateRoleSimilarity(subtitleCorpus.getTokens(), subtokenoffsets[subindex], subtokenoffsets[subindex+1],
+                    bookCorpus.getTokens(), booktokenoffsets[bookindex], booktokenoffsets[bookindex+1], subtitleCorpus, subindex);
+        }
+    }
+    
     /**
      * Calculates the similarity between two sentences
      * @param bookindex index of the book sentence
      * @param subindex index of the subtitle sentence
+     * @param maxscore the score the similarity has to exceed to be used, frames that can't reach it are skipped
      * @return the resulting similarity
      */
-    private double calculateSentenceSimilarity (int bookindex, int subindex){
-	Map<String, Map<String, List<String>>> booksentence = bookSRL.get(bookindex);
-	Map<String, Map<String, List<String>>> subsentence = subtitleSRL.get(subindex);
+    private double calculateSentenceSimilarity (int bookindex, int subindex, double maxscore){
+        int[] bookpredicates = bookCorpus.getPredicateOffsets();
+        int[] subpredicates = subtitleCorpus.getPredicateOffsets();
+        int[] bookwordcounts = bookCorpus.getWordCounts();
+        int[] subwordcounts = subtitleCorpus.getWordCounts();
         
         double maxsim = -1;
 
-        for (Entry<String, Map<String, List<String>>> bookpredicate : booksentence.entrySet()){
-            Map<String, List<String>> bookframe = bookpredicate.getValue();
-            if (bookWordCounts.get(bookindex).get(bookpredicate.getKey()) >= minnumberofmatchingwords){
-                for (Entry<String, Map<String, List<String>>> subtitlepredicate : subsentence.entrySet()){
-                    Map<String, List<String>> subframe = subtitlepredicate.getValue();
-                    if (subtitleWordCounts.get(subindex).get(subtitlepredicate.getKey()) >= minnumberofmatchingwords){
-                        double fsim = calculateFrameSimilarity(bookframe,subframe,bookindex,subindex);
-                        if (fsim > maxsim){
-                            maxsim = fsim;
+        // Compare the frames with the same or related predicates first, they are the most likely to be similar.
+        // The other frames have no similarity in their "rel" role, so their bound is lower.
+        for (int pass = 0; pass < 2; pass++){
+            boolean relatedpredicates = (pass == 0);
+            for (int bookpredicate = bookpredicates[bookindex]; bookpredicate < bookpredicates[bookindex+1]; bookpredicate++){
+                if (bookwordcounts[bookpredicate] >= minnumberofmatchingwords){
+                    for (int subpredicate = subpredicates[subindex]; subpredicate < subpredicates[subindex+1]; subpredicate++){
+                        if (subwordcounts[subpredicate] >= minnumberofmatchingwords
+                                && isRelatedPredicate(bookpredicate,subpredicate,bookindex) == relatedpredicates){
+                            // Skip the frames if their similarity can't be high enough
+                            double upperbound = getFrameUpperBound(bookpredicate,subpredicate,relatedpredicates);
+                            if (upperbound < mindelta || upperbound <= maxscore || upperbound <= maxsim){
+                                prunedframes++;
+                            }
+                            else{
+                                scoredframes++;
+                                double fsim = calculateFrameSimilarity(bookpredicate,subpredicate,bookindex,subindex);
+                                if (fsim > maxsim){
+                                    maxsim = fsim;
+                                }
+                            }
                         }
                     }
                 }
-	    }
-	}
+            }
+        }
         return maxsim;
     }
 
+    /**
+     * Check if the "rel" roles of two frames can be similar: the predicates are the same word, or the
+     * subtitle predicate is a related word of the book predicate (with the same type as in the role similarity)
+     * @param bookpredicate index of the predicate of the book frame
+     * @param subpredicate index of the predicate of the subtitle frame
+     * @param bookindex index of the book sentence
+     * @return false if the similarity of the "rel" roles is 0
+     */
+    private boolean isRelatedPredicate (int bookpredicate, int subpredicate, int bookindex){
+        int bookrel = bookCorpus.getRelWords()[bookpredicate];
+        int subrel = subtitleCorpus.getRelWords()[subpredicate];
+        if (bookrel == -1 || subrel == -1){ // The roles can't be compared word to word
+            return true;
+        }
+        if (bookrel >= alphanumericwords.length || !alphanumericwords[bookrel]){
+            return false;
+        }
+        if (bookrel == subrel){
+            return true;
+        }
+        // Both roles have one word, so the book role is the smallest termset and the type of its first word is used
+        int tokenstart = bookCorpus.getTokenOffsets()[bookindex];
+        char type = (tokenstart < bookCorpus.getTokenOffsets()[bookindex+1])?(char)bookCorpus.getTokenTypes()[tokenstart]:'n';
+        int[] related = relatedwordids[getRelatedKey(bookrel, type)];
+        return related != null && Arrays.binarySearch(related, subrel) >= 0;
+    }
+
+    /**
+     * Calculates an upper bound of the similarity between two frames, each common role adds at most
+     * the size of its smallest termset divided by the size of its biggest termset.
+     * The terms are added in the same order as the role similarities, so the bound is never below the similarity.
+     * @param bookpredicate index of the predicate of the book frame
+     * @param subpredicate index of the predicate of the subtitle frame
+     * @param relatedpredicates false if the "rel" roles have no similarity (see isRelatedPredicate)
+     * @return the upper bound
+     */
+    private double getFrameUpperBound (int bookpredicate, int subpredicate, boolean relatedpredicates){
+        int[] bookroles = bookCorpus.getRoleIds();
+        int[] subroles = subtitleCorpus.getRoleIds();
+        int[] bookwordoffsets = bookCorpus.getWordOffsets();
+        int[] subwordoffsets = subtitleCorpus.getWordOffsets();
+        int bookrolestart = bookCorpus.getRoleOffsets()[bookpredicate];
+        int bookroleend = bookCorpus.getRoleOffsets()[bookpredicate+1];
+        int subrolestart = subtitleCorpus.getRoleOffsets()[subpredicate];
+        int subroleend = subtitleCorpus.getRoleOffsets()[subpredicate+1];
+        
+        double bound = 0;
+        int bookrole = bookrolestart;
+        int subrole = subrolestart;
+        while (bookrole < bookroleend && subrole < subroleend){
+            if (bookroles[bookrole] < subroles[subrole]){
+                bookrole++;
+            }
+            else if (bookroles[bookrole] > subroles[subrole]){
+                subrole++;
+            }
+            else{
+                if (relatedpredicates || bookroles[bookrole] != relrole){
+                    int booksize = bookwordoffsets[bookrole+1]-bookwordoffsets[bookrole];
+                    int subsize = subwordoffsets[subrole+1]-subwordoffsets[subrole];
+                    bound += (double)Math.min(booksize, subsize)/Math.max(booksize, subsize);
+                }
+                bookrole++;
+                subrole++;
+            }
+        }
+        int nrofbookroles = bookroleend-bookrolestart;
+        int nrofsubroles = subroleend-subrolestart;
+        return bound/Math.max(nrofbookroles, nrofsubroles);
+    }
+    
     /**
      * Calculates the similarity between two frames
-     * @param bookframe frame of the book with SRL tagging
-     * @param subframe frame of the subtitle with SRL tagging
+     * @param bookpredicate index of the predicate of the book frame
+     * @param subpredicate index of the predicate of the subtitle frame
      * @param bookindex index of the book sentence
      * @param subindex index of the subtitle sentence
      * @return the resulting similarity
      */
-    private double calculateFrameSimilarity (Map<String, List<String>> bookframe,Map<String, List<String>> subframe, int bookindex, int subindex){
-	Set<String> commonroles = new HashSet<String>();
-	for (String argLabel : bookframe.keySet()){
-            // Check if the role exists in the other frame
-            if (subframe.containsKey(argLabel)){ // Role exists
-                commonroles.add(argLabel);
-            }
-	}
+    private double calculateFrameSimilarity (int bookpredicate, int subpredicate, int bookindex, int subindex){
+        int[] bookroles = bookCorpus.getRoleIds();
+        int[] subroles = subtitleCorpus.getRoleIds();
+        int[] bookwordoffsets = bookCorpus.getWordOffsets();
+        int[] subwordoffsets = subtitleCorpus.getWordOffsets();
+        int bookrolestart = bookCorpus.getRoleOffsets()[bookpredicate];
+        int bookroleend = bookCorpus.getRoleOffsets()[bookpredicate+1];
+        int subrolestart = subtitleCorpus.getRoleOffsets()[subpredicate];
+        int subroleend = subtitleCorpus.getRoleOffsets()[subpredicate+1];
+        
+        // The roles of both frames are sorted on their id, so the common roles are found by merging them
 	double fsim = 0;
-	for (String role : commonroles){
-            List<String> bookpostags = bookPOS.get(bookindex);
-            List<String> subpostags = subtitlePOS.get(subindex);
-            if (bookframe.get(role).size() <= subframe.get(role).size()){
-                fsim += calculateRoleSimilarity(bookframe.get(role),subframe.get(role),bookpostags);
+        int bookrole = bookrolestart;
+        int subrole = subrolestart;
+        while (bookrole < bookroleend && subrole < subroleend){
+            if (bookroles[bookrole] < subroles[subrole]){
+                bookrole++;
             }
-            else{
-                fsim += calculateRoleSimilarity(subframe.get(role),bookframe.get(role),subpostags);
+            else if (bookroles[bookrole] > subroles[subrole]){
+                subrole++;
+            }
+            else{ // Role exists in both frames
+                int bookwordstart = bookwordoffsets[bookrole];
+                int bookwordend = bookwordoffsets[bookrole+1];
+                int subwordstart = subwordoffsets[subrole];
+                int subwordend = subwordoffsets[subrole+1];
+                if (bookwordend-bookwordstart <= subwordend-subwordstart){
+                    fsim += calculateRoleSimilarity(bookCorpus.getRoleWords(), bookwordstart, bookwordend,
+                            subtitleCorpus.getRoleWords(), subwordstart, subwordend, bookCorpus, bookindex);
+                }
+                else{
+                    fsim += calculateRoleSimilarity(subtitleCorpus.getRoleWords(), subwordstart, subwordend,
+                            bookCorpus.getRoleWords(), bookwordstart, bookwordend, subtitleCorpus, subindex);
+                }
+                bookrole++;
+                subrole++;
             }
 	}
         
         // Check which frame has the most roles
-        int nrofbookroles = bookframe.keySet().size();
-        int nrofsubroles = subframe.keySet().size();
+        int nrofbookroles = bookroleend-bookrolestart;
+        int nrofsubroles = subroleend-subrolestart;
         int biggestnrofroles = (nrofbookroles >= nrofsubroles)?nrofbookroles:nrofsubroles;
         return (fsim/biggestnrofroles); // Return the frame similarity
     }
 
     /**
      * Calculates the similarity between two termsets
-     * @param termsetm the smallest of the two termsets
-     * @param termsetn the biggest of the two termsets
-     * @param possetm the POS tagging for the smallest of the two termsets
+     * @param termsetm array with the smallest of the two termsets
+     * @param mstart start of the smallest termset
+     * @param mend end of the smallest termset
+     * @param termsetn array with the biggest of the two termsets
+     * @param nstart start of the biggest termset
+     * @param nend end of the biggest termset
+     * @param corpusm the corpus of the sentence of the smallest termset, its POS tagging is used
+     * @param sentencem the index of the sentence of the smallest termset
      * @return the resulting similarity
      */
-    private double calculateRoleSimilarity (List<String> termsetm, List<String> termsetn, List<String> possetm){
+    private double calculateRoleSimilarity (int[] termsetm, int mstart, int mend, int[] termsetn, int nstart, int nend, AnalyzedCorpus corpusm, int sentencem){
+        int sizen = nend-nstart;
+        // Start with no used indexes
+        if (usedindexes.length < sizen){
+            usedindexes = new int[Math.max(sizen, usedindexes.length*2)];
+            usedstamp = 0;
+        }
+        usedstamp++;
+        if (usedstamp == 0){ // Wrapped around
+            Arrays.fill(usedindexes, 0);
+            usedstamp = 1;
+        }
+        byte[] possetm = corpusm.getTokenTypes();
+        int posstart = corpusm.getTokenOffsets()[sentencem];
+        int posend = corpusm.getTokenOffsets()[sentencem+1];
 	double rsim = 0;
         int i = 0;
-        Set<Integer> usedindexes = new HashSet<Integer>();
-	for (String term : termsetm){
-            if (term.matches(".*[a-z0-9A-Z].*")){
-                String posTerm = possetm.get(i);
-                char type = 'n'; // Noun
-                if (posTerm.contains("VB")){
-                    type = 'v'; // Verb
-                }
-                else if (posTerm.contains("JJ")){
-                    type = 'a'; // Adjective
-                }
-                else if (posTerm.contains("RB")){
-                    type = 'r'; // Adverb
-                }
-                int termindex = termsetn.indexOf(term);
-                if (termindex != -1){
-                    while (usedindexes.contains(termindex) && termindex+1 < termsetn.size()){
-                        int tempindex = termsetn.subList(termindex+1, termsetn.size()).indexOf(term);
-                        termindex = (tempindex >= 0)?termindex+tempindex+1:tempindex;
-                    }
+	for (int m = mstart; m < mend; m++){
+            int term = termsetm[m];
+            // Words that were first seen in the roles of a deferred book sentence are punctuation
+            if (term < alphanumericwords.length && alphanumericwords[term]){
+                // The POS tag at the same position in the sentence (noun if the sentence is shorter)
+                char type = (posstart+i < posend)?(char)possetm[posstart+i]:'n';
+                int termindex = findUnusedIndex(term, termsetn, nstart, nend);
+                if (termindex == -1 && nend > nstart && termsetn[nend-1] == term){
+                    termindex = sizen-1; // The last index of the other termset can be matched more than once
                 }
                 if (termindex != -1){ // The term itself is included in the other termset
-                    usedindexes.add(termindex);
+                    usedindexes[termindex] = usedstamp;
                     rsim++;
                 }
                 else{
                     // Fetch the terms related to the current term
-                    Map<Character, Set<String>> relatedwordmap = relatedwords.get(term.toLowerCase());
-                    Set<String> relatedwordset = null;
-                    if (relatedwordmap != null){
-                        relatedwordset = relatedwordmap.get(type);
-                    }
-                    if (relatedwordset != null){ 
-                        boolean found = false;
-                        Iterator<String> relatedworditerator = relatedwordset.iterator();
-                        while (!found && relatedworditerator.hasNext()){
-                            // A related term is included in the other termset
-                            String relatedterm = relatedworditerator.next();
-                            int relatedtermindex = termsetn.indexOf(relatedterm);
-                            if (relatedtermindex != -1){
-                                while (usedindexes.contains(relatedtermindex)){
-                                    int tempindex = termsetn.subList(relatedtermindex+1, termsetn.size()).indexOf(relatedterm);
-                                    relatedtermindex = (tempindex >= 0)?relatedtermindex+tempindex+1:tempindex;
-                                }
-                            }
-                            if (relatedtermindex != -1){ // The related term is included in the other termset
-                                usedindexes.add(relatedtermindex);
-                                found = true;
-                                rsim++;
-                            }
+                    int relatedkey = getRelatedKey(term, type);
+                    if (relatedwordids[relatedkey] != null){ 
+                        int relatedtermindex = findRelatedIndex(relatedwordids[relatedkey], relatedwordranks[relatedkey], termsetn, nstart, nend);
+                        if (relatedtermindex != -1){ // A related term is included in the other termset
+                            usedindexes[relatedtermindex] = usedstamp;
+                            rsim++;
                         }
                     }
                 }
                 i++;
             }
 	}
-        return (rsim/termsetn.size()); // Return the role similarity
+        return (rsim/sizen); // Return the role similarity
+    }
+    
+    /**
+     * Find the first index of a term in a termset that isn't used yet
+     * @param term the term
+     * @param termset array with the termset
+     * @param start start of the termset
+     * @param end end of the termset
+     * @return the index relative to the start of the termset, -1 if there is no such index
+     */
+    private int findUnusedIndex(int term, int[] termset, int start, int end){
+        for (int n = start; n < end; n++){
+            if (termset[n] == term && usedindexes[n-start] != usedstamp){
+                return n-start;
+            }
+        }
+        return -1;
     }
 
+    /**
+     * Find the index of a related term in a termset that isn't used yet. The term that comes first in the
+     * related words set wins, like when the related words are looked up one by one
+     * @param related the ids of the related terms, in ascending order
+     * @param ranks the positions of the related terms in the related words set
+     * @param termset array with the termset
+     * @param start start of the termset
+     * @param end end of the termset
+     * @return the index relative to the start of the termset, -1 if there is no such index
+     */
+    private int findRelatedIndex(int[] related, int[] ranks, int[] termset, int start, int end){
+        int bestindex = -1;
+        int bestrank = Integer.MAX_VALUE;
+        for (int n = start; n < end; n++){
+            if (usedindexes[n-start] != usedstamp){
+                int position = Arrays.binarySearch(related, termset[n]);
+                if (position >= 0 && ranks[position] < bestrank){
+                    bestindex = n-start;
+                    bestrank = ranks[position];
+                }
+            }
+        }
+        return bestindex;
+    }
+    
+    /**
+     * Get the position of a word and type in the related words index
+     * @param word the id of the word
+     * @param type the type of the word ('n', 'v', 'a' or 'r')
+     * @return the position in the index
+     */
+    private static int getRelatedKey(int word, char type){
+        switch (type){
+            case 'v':
+                return word*4+1;
+            case 'a':
+                return word*4+2;
+            case 'r':
+                return word*4+3;
+            default:
+                return word*4;
+        }
+    }
+    
+    /**
+     * Index the related words that occur in the book or subtitles, the other related words can never be matched.
+     * The related words of a token are looked up now, with the derivate forms of the token if it is a base form,
+     * and only the words that occur are kept.
+     */
+    private void indexRelatedWords(){
+        relatedwordids = new int[words.size()*4][];
+        relatedwordranks = new int[words.size()*4][];
+        for (int word = 0; word < words.size(); word++){
+            boolean related = false;
+            for (char type : wordtypes){
+                related |= hasRelatedWords(getRelatedKey(word, type));
+            }
+            if (related){ // Base forms without related words don't get their derivate forms either
+                Map<Character, Set<String>> derivatetypemap = derivatewordsMap.get(words.getString(word));
+                for (char type : wordtypes){
+                    int key = getRelatedKey(word, type);
+                    Set<String> relatedwordset = null;
+                    if (hasRelatedWords(key)){
+                        synchronized (wn){ // Other synchronisations can use WordNet at the same time
+                            relatedwordset = getRelatedWords(words.getString(word), getSynsetType(type));
+                        }
+                    }
+                    Set<String> derivatewords = (derivatetypemap != null)?derivatetypemap.get(type):null;
+                    if (derivatewords != null){ // Add the derivate forms before the related words
+                        Set<String> newrelated = new HashSet<String>(derivatewords);
+                        if (relatedwordset != null){
+                            newrelated.addAll(relatedwordset);
+                        }
+                        relatedwordset = newrelated;
+                    }
+                    if (relatedwordset != null){
+                        indexRelatedWords(key, relatedwordset);
+                    }
+                }
+            }
+        }
+        // The word forms aren't needed anymore
+        hasrelatedwords = null;
+        derivatewordsMap.clear();
+    }
+    
+    /**
+     * Index the related words of a word that occur in the book or subtitles
+     * @param key the position of the word and its type in the index (see getRelatedKey)
+     * @param relatedwordset the related words of the word
+     */
+    private void indexRelatedWords(int key, Set<String> relatedwordset){
+        // Keep the ids with their position in the set
+        long[] related = new long[relatedwordset.size()];
+        int numberofrelated = 0;
+        int rank = 0;
+        for (String relatedword : relatedwordset){
+            int id = words.getExistingId(relatedword);
+            if (id != -1){
+                related[numberofrelated++] = ((long)id << 32) | rank;
+            }
+            rank++;
+        }
+        if (numberofrelated > 0){
+            Arrays.sort(related, 0, numberofrelated);
+            relatedwordids[key] = new int[numberofrelated];
+            relatedwordranks[key] = new int[numberofrelated];
+            for (int i = 0; i < numberofrelated; i++){
+                relatedwordids[key][i] = (int)(related[i] >>> 32);
+                relatedwordranks[key][i] = (int)related[i];
+            }
+        }
+    }
+    
+    /**
+     * Check if the roles of a sentence are needed, they aren't if the sentence has too few words to be compared on its roles
+     * @param sentence the analyzed sentence
+     * @return true if the roles are needed
+     */
+    private boolean needsLabels(AnalyzedSentence sentence){
+        return sentence.getTokens().size() >= minnumberofmatchingwords;
+    }
+    
+    /**
+     * Add the roles of the next sentences of a corpus, up to the given sentence.
+     * The roles of the sentences that were only tagged are labeled first.
+     * @param pending the sentences of which the roles still have to be added
+     * @param last index of the last sentence of which the roles have to be added
+     */
+    private void addFrames(PendingFrames pending, int last){
+        for (int index = pending.corpus.getNumberOfLabeledSentences(); index <= last; index++){
+            AnalyzedSentence analyzedSentence = pending.analyzed[index];
+            Map<String, Map<String, List<String>>> SRLMap;
+            if (pending.records[index] != 0){
+                SRLMap = getCachedSentence(pending.sentences.get(index), pending.records[index]).getSRLMap();
+            }
+            else if (analyzedSentence == null){ // Only tagged, too short to be compared on its roles
+                SRLMap = new HashMap<String, Map<String, List<String>>>();
+            }
+            else if (!analyzedSentence.isLabeled() && needsLabels(analyzedSentence)){
+                SRLMap = getSRLMap(pending.labeled.next());
+                if (srlcache != null){
+                    srlcache.put(pending.sentences.get(index), new AnalyzedSentence(SRLMap, analyzedSentence.getTokens(), analyzedSentence.getPOS(), true));
+                }
+            }
+            else{
+                SRLMap = analyzedSentence.getSRLMap();
+            }
+            pending.analyzed[index] = null;
+            // Check if at least one of the predicates has the minimum number of words
+            pending.corpus.addFrames(SRLMap);
+            pending.enoughwords[index] = countRoles(pending.corpus, index, pending.fewestroles, pending.mostroles);
+            if (pending.progressname != null){
+                printPreparationProgress(pending.progressname, 50+(index*50)/pending.analyzed.length);
+            }
+        }
+    }
+    
+    /**
+     * Decode a sentence from its record in the cache file
+     * @param sentence the sentence
+     * @param record the record of the sentence (see SRLCache.getRecord)
+     * @return the analyzed sentence
+     * @throws IllegalStateException the sentence isn't in the cache anymore
+     */
+    private AnalyzedSentence getCachedSentence(String sentence, long record){
+        AnalyzedSentence cachedSentence = srlcache.get(sentence, record);
+        if (cachedSentence == null){
+            throw new IllegalStateException("Sentence no longer in the SRL cache: "+sentence);
+        }
+        return cachedSentence;
+    }
+    
+    /**
+     * Print the progress of the preparation if it increased
+     * @param progressname name of the progress
+     * @param progress the progress in percent
+     */
+    private void printPreparationProgress(String progressname, int progress){
+        if (progress > previouspreparationprogress){
+            output.setProgress(progressname, progress);
+            previouspreparationprogress = progress;
+        }
+    }
+    
+    /**
+     * Fetch the SRL labels and the POS tags of the tokens (without punctuation) of a parsed sentence
+     * @param sentence the parsed sentence
+     * @param labeled true if the roles of the sentence were labeled, false if it was only tagged
+     * @return the analyzed sentence
+     */
+    private AnalyzedSentence analyzeSentence(Sentence sentence, boolean labeled){
+        Map<String, Map<String, List<String>>> SRLMap = (labeled)?getSRLMap(sentence):new HashMap<String, Map<String, List<String>>>();
+        String[] posarray = sentence.getPOSArray();
+        String[] wordarray = sentence.getFormArray();
+        List<String> poslist = new ArrayList<String>();
+        List<String> tokenlist = new ArrayList<String>();
+        for (int i = 0; i < wordarray.length; i++){
+            if (wordarray[i].matches(".*[a-zA-Z0-9].*")){ // Don't do empty strings or punctuation
+                tokenlist.add(wordarray[i].toLowerCase());
+                poslist.add(posarray[i]);
+            }
+        }
+        return new AnalyzedSentence(SRLMap, tokenlist, poslist, labeled);
+    }
+    
     /**
      * Write SRL parse results to a map structure
      * @param sentence the parsed sentence
@@ -435,6 +1273,69 @@ public class SentenceLevelSemanticSimilarity {
         return predicatemap;
     }
     
+    /**
+     * Parse the sentences one by one with the complete pipeline
+     * @param sentencelist the sentences to parse
+     * @return the parsed sentences in the same order (null for a sentence that couldn't be parsed)
+     */
+    private Iterator<Sentence> parseSentences(final List<String> sentencelist){
+        return new Iterator<Sentence>() {
+            private final Iterator<String> sentences = sentencelist.iterator();
+            
+            @Override
+            public boolean hasNext() {
+                return sentences.hasNext();
+            }
+
+            @Override
+            public Sentence next() {
+                return parseSentence(sentences.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    /**
+     * Load the models of the SRL library, if that hasn't happened yet
+     * @throws IOException reading the models failed
+     */
+    private void loadPipeline() throws IOException {
+        if (srllib != null){
+            return;
+        }
+        try {
+            srllib = getCompletePipeline(srloptions);
+        } catch (ClassNotFoundException ex) {
+            System.err.println(ex);
+            return;
+        }
+        try {
+            srlpipeline = new SRLPipeline(srllib, pipelined);
+        } catch (ReflectiveOperationException ex) { // Other version of the library, parse every sentence completely
+            System.err.println(ex);
+        }
+    }
+    
+    /**
+     * Get the complete pipeline of the SRL library with the given options, it is loaded the first time
+     * @param options the options of the SRL library
+     * @return the complete pipeline
+     * @throws IOException reading the models failed
+     * @throws ClassNotFoundException the models are from another version of the library
+     */
+    private static synchronized CompletePipeline getCompletePipeline(FullPipelineOptions options) throws IOException, ClassNotFoundException {
+        CompletePipeline pipeline = loadedpipelines.get(options);
+        if (pipeline == null){
+            pipeline = CompletePipeline.getCompletePipeline(options);
+            loadedpipelines.put(options, pipeline);
+        }
+        return pipeline;
+    }
+    
     /**
      * Parse a sentence using the given pipeline
      * @param stringsentence the sentence to parse
@@ -443,7 +1344,9 @@ public class SentenceLevelSemanticSimilarity {
     private Sentence parseSentence(String stringsentence){
         Sentence sentence = null;
         try {
-            sentence = srllib.parse(stringsentence); // Parse the sentence
+            synchronized (srllib){ // The pipeline can be shared with other synchronisations
+                sentence = srllib.parse(stringsentence); // Parse the sentence
+            }
         } catch (Exception ex) {
             System.err.println(ex);
         }
@@ -456,111 +1359,134 @@ public class SentenceLevelSemanticSimilarity {
     }
 
     /**
-     * Calculate the number of words for every predicate and indicate if there is at least one predicate
-     * with the minimum number of words
-     * @param SRLMap the map with semantic role labels
-     * @param wordCount the map to store the counts
+     * Find the fewest and most roles of the predicates with the minimum number of words in a sentence
+     * @param corpus the corpus of the sentence
+     * @param index the index of the sentence
+     * @param fewestroles array to store the fewest roles
+     * @param mostroles array to store the most roles
      * @return true if there is at least one predicate with the minimum number of words
      */
-    private boolean fillWordCounts(Map<String, Map<String, List<String>>> SRLMap, Map<String, Integer> wordCount) {
+    private boolean countRoles(AnalyzedCorpus corpus, int index, int[] fewestroles, int[] mostroles) {
+        int[] predicates = corpus.getPredicateOffsets();
+        int[] roleoffsets = corpus.getRoleOffsets();
         boolean enoughwords = false;
-        if (SRLMap != null){
-            for (Entry<String, Map<String, List<String>>> predicate : SRLMap.entrySet()){                    
-                int wordcount = 0;
-                for (Entry<String, List<String>> roles : predicate.getValue().entrySet()){
-                    wordcount += roles.getValue().size();
-                }
-                wordCount.put(predicate.getKey(), wordcount);
-                if (wordcount >= minnumberofmatchingwords){
-                    enoughwords = true;
-                }
+        fewestroles[index] = Integer.MAX_VALUE;
+        for (int predicate = predicates[index]; predicate < predicates[index+1]; predicate++){
+            if (corpus.getWordCounts()[predicate] >= minnumberofmatchingwords){
+                int nrofroles = roleoffsets[predicate+1]-roleoffsets[predicate];
+                fewestroles[index] = Math.min(fewestroles[index], nrofroles);
+                mostroles[index] = Math.max(mostroles[index], nrofroles);
+                enoughwords = true;
             }
         }
         return enoughwords;
     }
     
     /**
-     * Add the related words of the given word and part of speech to the related words map
-     * @param word the given word
-     * @param POS its part of speech tag
-     * @param derivatewordsMap the map containing derivate forms (values) of base forms (keys)
+     * Add a token to the derivate forms of its base forms, until it is known that the token has related words
+     * (like when the related words were looked up for every token). The related words are looked up
+     * when all words are known, see indexRelatedWords.
+     * @param word the id of the token
+     * @param type the type of the token ('n', 'v', 'a' or 'r')
      */
-    private void addRelatedWords(String word, String POS, Map<String, Map<Character, Set<String>>> derivatewordsMap){
-        String lowercaseword = word.toLowerCase();
-                
-        // Find the synset type based on the POS tag
-        SynsetType type = SynsetType.NOUN;
-        char keytype = 'n';
-        if (POS.contains("VB")){
-            type = SynsetType.VERB;
-            keytype = 'v';
+    private void addDerivateForms(int word, char type){
+        int key = getRelatedKey(word, type);
+        if (hasRelatedWords(key)){
+            return;
         }
-        else if (POS.contains("JJ")){
-            type = SynsetType.ADJECTIVE;
-            keytype = 'a';
+        String lowercaseword = words.getString(word);
+        SynsetType synsettype = getSynsetType(type);
+        // Add this word to the sets of possible baseforms
+        String[] baseFormCandidates = wn.getBaseFormCandidates(lowercaseword, synsettype);
+        for (String baseform : baseFormCandidates){ // Add the word to each of the baseforms
+            String lowerbaseform = baseform.toLowerCase();
+            Map<Character, Set<String>> typemap = derivatewordsMap.get(lowerbaseform);
+            Set<String> relatedbase = new HashSet<String>(); // Add the original form to the new related set
+            relatedbase.add(lowercaseword);
+            if (typemap != null){
+                Set<String> alreadyrelated = typemap.get(type); // Check if there was already a related set
+                if (alreadyrelated != null){ // Add them to the new related set
+                    relatedbase.addAll(alreadyrelated);
+                }
+            }
+            else{
+                derivatewordsMap.put(lowerbaseform, new HashMap<Character, Set<String>>());
+                typemap = derivatewordsMap.get(lowerbaseform);
+            }
+            typemap.put(type, relatedbase);
         }
-        else if (POS.contains("RB")){
-            type = SynsetType.ADVERB;
-            keytype = 'r';
+        // Every synset has word forms, so the word has related words if it has a synset
+        if (wn.getSynsets(lowercaseword, synsettype).length > 0){
+            if (hasrelatedwords.length <= key){
+                hasrelatedwords = Arrays.copyOf(hasrelatedwords, Math.max(key+1, hasrelatedwords.length*2));
+            }
+            hasrelatedwords[key] = true;
         }
-                
-        // If we haven't got the related words yet, get them
-        if (!relatedwords.containsKey(lowercaseword) || !relatedwords.get(lowercaseword).containsKey(keytype)){
-            
-            // Add this word to the sets of possible baseforms
-            String[] baseFormCandidates = wn.getBaseFormCandidates(word, type);
-            for (String baseform : baseFormCandidates){ // Add the word to each of the baseforms
-                String lowerbaseform = baseform.toLowerCase();
-                Map<Character, Set<String>> typemap = derivatewordsMap.get(lowerbaseform);
-                Set<String> relatedbase = new HashSet<String>(); // Add the original form to the new related set
-                relatedbase.add(lowercaseword);
-                if (typemap != null){
-                    Set<String> alreadyrelated = typemap.get(keytype); // Check if there was already a related set
-                    if (alreadyrelated != null){ // Add them to the new related set
-                        relatedbase.addAll(alreadyrelated);
-                    }
-                }
-                else{
-                    derivatewordsMap.put(lowerbaseform, new HashMap<Character, Set<String>>());
-                    typemap = derivatewordsMap.get(lowerbaseform);
-                }
-                typemap.put(keytype, relatedbase);
-            }
-            Synset[] synsets = wn.getSynsets(word, type);
-            Set<String> relatedstrings = new HashSet<>();
-            for (Synset syns : synsets){
-                relatedstrings.addAll(Arrays.asList(syns.getWordForms())); // Add synonyms
-                if (type.equals(SynsetType.NOUN)){
-                    NounSynset nsyns = (NounSynset)syns;                    
-                    addToRelatedWords(nsyns.getHypernyms(),relatedstrings); // Add the hypernyms
-                    addToRelatedWords(nsyns.getHyponyms(),relatedstrings); // Add the hyponyms
-                    // Add the holonyms
-                    addToRelatedWords(nsyns.getMemberHolonyms(),relatedstrings);
-                    addToRelatedWords(nsyns.getPartHolonyms(),relatedstrings);
-                    addToRelatedWords(nsyns.getSubstanceHolonyms(),relatedstrings);
-                    // Add the meronyms
-                    addToRelatedWords(nsyns.getMemberMeronyms(),relatedstrings);
-                    addToRelatedWords(nsyns.getPartMeronyms(),relatedstrings);
-                    addToRelatedWords(nsyns.getSubstanceMeronyms(),relatedstrings);
-                }
-                else if (type.equals(SynsetType.VERB)){
-                    VerbSynset vsyns = (VerbSynset)syns; 
-                    addToRelatedWords(vsyns.getHypernyms(),relatedstrings); // Add the hypernyms
-                    addToRelatedWords(vsyns.getTroponyms(),relatedstrings); // Add the hyponyms
-                }
-                else if (type.equals(SynsetType.ADJECTIVE)){
-                    AdjectiveSynset asyns = (AdjectiveSynset) syns;
-                    addToRelatedWords(asyns.getSimilar(),relatedstrings); // Add the synonyms
-                }
+    }
+    
+    /**
+     * Check if a token has related words
+     * @param key the position of the token and its type (see getRelatedKey)
+     * @return true if it has related words
+     */
+    private boolean hasRelatedWords(int key){
+        return key < hasrelatedwords.length && hasrelatedwords[key];
+    }
+    
+    /**
+     * Get the synset type of a word type
+     * @param type the type of the word ('n', 'v', 'a' or 'r')
+     * @return the synset type
+     */
+    private static SynsetType getSynsetType(char type){
+        switch (type){
+            case 'v':
+                return SynsetType.VERB;
+            case 'a':
+                return SynsetType.ADJECTIVE;
+            case 'r':
+                return SynsetType.ADVERB;
+            default:
+                return SynsetType.NOUN;
+        }
+    }
+    
+    /**
+     * Look up the related words of a word in WordNet
+     * @param word the word
+     * @param type its synset type
+     * @return the synonyms, and the hypernyms, hyponyms, holonyms and meronyms of nouns, the hypernyms and troponyms
+     * of verbs and the similar adjectives of adjectives
+     */
+    private Set<String> getRelatedWords(String word, SynsetType type){
+        Synset[] synsets = wn.getSynsets(word, type);
+        Set<String> relatedstrings = new HashSet<>();
+        for (Synset syns : synsets){
+            relatedstrings.addAll(Arrays.asList(syns.getWordForms())); // Add synonyms
+            if (type.equals(SynsetType.NOUN)){
+                NounSynset nsyns = (NounSynset)syns;                    
+                addToRelatedWords(nsyns.getHypernyms(),relatedstrings); // Add the hypernyms
+                addToRelatedWords(nsyns.getHyponyms(),relatedstrings); // Add the hyponyms
+                // Add the holonyms
+                addToRelatedWords(nsyns.getMemberHolonyms(),relatedstrings);
+                addToRelatedWords(nsyns.getPartHolonyms(),relatedstrings);
+                addToRelatedWords(nsyns.getSubstanceHolonyms(),relatedstrings);
+                // Add the meronyms
+                addToRelatedWords(nsyns.getMemberMeronyms(),relatedstrings);
+                addToRelatedWords(nsyns.getPartMeronyms(),relatedstrings);
+                addToRelatedWords(nsyns.getSubstanceMeronyms(),relatedstrings);
             }
-            if (!relatedstrings.isEmpty()){ // Don't need to add to the map if there are no related terms
-                // If we haven't got the related words yet, make a hashmap to store them
-                if (!relatedwords.containsKey(lowercaseword)){
-                    relatedwords.put(lowercaseword, new HashMap<Character, Set<String>>());
-                }
-                relatedwords.get(lowercaseword).put(keytype,relatedstrings); // Add the resulting list to the map
+            else if (type.equals(SynsetType.VERB)){
+                VerbSynset vsyns = (VerbSynset)syns; 
+                addToRelatedWords(vsyns.getHypernyms(),relatedstrings); // Add the hypernyms
+                addToRelatedWords(vsyns.getTroponyms(),relatedstrings); // Add the hyponyms
+            }
+            else if (type.equals(SynsetType.ADJECTIVE)){
+                AdjectiveSynset asyns = (AdjectiveSynset) syns;
+                addToRelatedWords(asyns.getSimilar(),relatedstrings); // Add the synonyms
             }
         }
+        return relatedstrings;
     }
     
     /**
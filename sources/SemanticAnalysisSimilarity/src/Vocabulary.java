@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps every string (a word or a role label) to a dense integer id, in the order they are added
+ * @author jeknocka
+ */
+public class Vocabulary {
+
+    // Ids of the strings
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    // Strings for each id
+    private final List<String> strings = new ArrayList<String>();
+
+    /**
+     * Get the id of a string, a new id is assigned if the string wasn't seen before
+     * @param string the string
+     * @return the id of the string
+     */
+    public int getId(String string){
+        Integer id = ids.get(string);
+        if (id == null){
+            id = strings.size();
+            strings.add(string);
+            ids.put(string, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the id of a string without adding it
+     * @param string the string
+     * @return the id of the string, -1 if it isn't in the vocabulary
+     */
+    public int getExistingId(String string){
+        Integer id = ids.get(string);
+        return (id != null)?id:-1;
+    }
+
+    /**
+     * Get the string for an id
+     * @param id the id
+     * @return the string
+     */
+    public String getString(int id){
+        return strings.get(id);
+    }
+
+    /**
+     * @return the number of strings in the vocabulary (all ids are smaller than this)
+     */
+    public int size(){
+        return strings.size();
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Length-prefixed binary protocol on the standard input and output, instead of the book and subtitle files
+ * and the lines of text. All numbers are 4 byte big-endian integers.
+ * The input is the number of parameters, the number of book sentences and the number of subtitles,
+ * each followed by as many strings (the length in bytes, followed by the UTF-8 bytes).
+ * The output is a sequence of frames: the length of the rest of the frame, the type of the frame (1 byte) and its content.
+ * A match frame holds a batch of matches of 12 bytes: the subtitle index, the book index and the score in hundredths
+ * (rounded like the text output). A progress frame holds the percentage, followed by the name of the progress in UTF-8.
+ * The frames are collected in a buffer, which is written at every progress report and at the end.
+ * @author jeknocka
+ */
+public class BinaryProtocol implements MatchOutput {
+
+    // Types of the frames
+    private static final byte matchframe = 1;
+    private static final byte progressframe = 2;
+    // Number of matches in a full match frame
+    private static final int batchsize = 512;
+    private static final int matchsize = 12;
+
+    private final WritableByteChannel channel;
+    // Frames that weren't written yet, the last one is an open match frame if matchesinframe > 0
+    private final ByteBuffer frames = ByteBuffer.allocate(64*1024);
+    private int framestart;
+    private int matchesinframe;
+    private boolean failed; // true when writing failed, the rest of the output is dropped
+
+    /**
+     * Creates an output that writes the frames to the given channel
+     * @param channel the channel (the standard output)
+     */
+    public BinaryProtocol(WritableByteChannel channel){
+        this.channel = channel;
+    }
+
+    /**
+     * Read a number of strings followed by the strings
+     * @param in the input
+     * @return the strings
+     * @throws IOException reading failed or the input ended too soon
+     */
+    public static List<String> readStrings(DataInputStream in) throws IOException {
+        int numberofstrings = in.readInt();
+        List<String> strings = new ArrayList<String>(numberofstrings);
+        for (int i = 0; i < numberofstrings; i++){
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    @Override
+    public void addMatch(int subindex, int bookindex, double score) {
+        if (matchesinframe == 0){ // Start a new match frame, the length is filled in when it is closed
+            if (frames.remaining() < 5+batchsize*matchsize){
+                write();
+            }
+            framestart = frames.position();
+            frames.putInt(0);
+            frames.put(matchframe);
+        }
+        frames.putInt(subindex);
+        frames.putInt(bookindex);
+        // The same rounding as %.2f
+        frames.putInt(new BigDecimal(Double.toString(score)).setScale(2, RoundingMode.HALF_UP).unscaledValue().intValue());
+        matchesinframe++;
+        if (matchesinframe == batchsize){
+            closeMatchFrame();
+        }
+    }
+
+    @Override
+    public void setProgress(String name, int progress) {
+        closeMatchFrame();
+        byte[] namebytes = name.getBytes(StandardCharsets.UTF_8);
+        if (frames.remaining() < 9+namebytes.length){
+            write();
+        }
+        frames.putInt(5+namebytes.length);
+        frames.put(progressframe);
+        frames.putInt(progress);
+        frames.put(namebytes);
+        write();
+    }
+
+    @Override
+    public void flush() {
+        closeMatchFrame();
+        write();
+    }
+
+    /**
+     * Fill in the length of the open match frame, if there is one
+     */
+    private void closeMatchFrame(){
+        if (matchesinframe > 0){
+            frames.putInt(framestart, 1+matchesinframe*matchsize);
+            matchesinframe = 0;
+        }
+    }
+
+    /**
+     * Write the complete frames in the buffer to the channel
+     */
+    private void write(){
+        frames.flip();
+        try {
+            while (!failed && frames.hasRemaining()){
+                channel.write(frames);
+            }
+        } catch (IOException ex) { // The reader is gone
+            System.err.println(ex);
+            failed = true;
+        }
+        frames.clear();
+    }
+}
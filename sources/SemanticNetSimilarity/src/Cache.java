@@ -0,0 +1,22 @@
+/**
+ * Cache that can be shared between threads and keeps track of its hit, miss and eviction counts
+ * @author jeknocka
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public interface Cache<K, V> extends CacheStatistics {
+    
+    /**
+     * Get a value from the cache
+     * @param key the key
+     * @return the cached value, null if not cached
+     */
+    public V get(K key);
+    
+    /**
+     * Add a value to the cache
+     * @param key the key
+     * @param value the value (not null)
+     */
+    public void put(K key, V value);
+}
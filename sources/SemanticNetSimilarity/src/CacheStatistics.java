@@ -0,0 +1,26 @@
+/**
+ * Statistics of a cache, to be read after a run
+ * @author jeknocka
+ */
+public interface CacheStatistics {
+    
+    /**
+     * @return the number of entries in the cache
+     */
+    public int size();
+    
+    /**
+     * @return the number of lookups that found a value
+     */
+    public long getHits();
+    
+    /**
+     * @return the number of lookups that didn't find a value
+     */
+    public long getMisses();
+    
+    /**
+     * @return the number of entries that were removed to stay within the bounds of the cache
+     */
+    public long getEvictions();
+}
@@ -0,0 +1,160 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of tokenized and POS tagged sentence lists on disk, so the same book or subtitles aren't tagged again.
+ * A list is stored in a file named after the SHA-1 hash of its sentences and the POS model,
+ * with a dictionary of the different words and their number of occurrences,
+ * followed by the words (as positions in the dictionary) and POS classes of each sentence.
+ * @author jeknocka
+ */
+public class CorpusCache {
+
+    private static final int magic = 0x54414753; // "TAGS"
+    private static final int formatversion = 1;
+
+    private final File directory;
+    private final String modelfingerprint;
+
+    /**
+     * Creates a cache in the given directory
+     * @param directory the directory in which the files are kept (created if needed)
+     * @param model the POS model file that is used to tag the sentences
+     */
+    public CorpusCache(File directory, File model){
+        this.directory = directory;
+        this.modelfingerprint = model.getName()+":"+model.length()+":"+model.lastModified();
+    }
+
+    /**
+     * Load tagged sentences from the cache
+     * @param sentences the sentences
+     * @return the tagged sentences, null if they aren't in the cache (or couldn't be read)
+     */
+    public TaggedSentences load(List<String> sentences){
+        File file = getFile(sentences);
+        if (file == null || !file.exists()){
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != magic || in.readInt() != formatversion){
+                    return null;
+                }
+                int numberofwords = in.readInt();
+                String[] dictionary = new String[in.readInt()];
+                Map<String, Double> wordstats = new HashMap<String, Double>();
+                for (int i = 0; i < dictionary.length; i++){
+                    dictionary[i] = in.readUTF();
+                    wordstats.put(dictionary[i], (double)in.readInt());
+                }
+                int numberofsentences = in.readInt();
+                if (numberofsentences != sentences.size()){
+                    return null;
+                }
+                String[][] words = new String[numberofsentences][];
+                byte[][] pos = new byte[numberofsentences][];
+                for (int i = 0; i < numberofsentences; i++){
+                    int length = in.readInt();
+                    words[i] = new String[length];
+                    pos[i] = new byte[length];
+                    for (int j = 0; j < length; j++){
+                        words[i][j] = dictionary[in.readInt()];
+                    }
+                    in.readFully(pos[i]);
+                }
+                return new TaggedSentences(words, pos, wordstats, numberofwords);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException ex) { // Damaged file, tag the sentences again
+            System.err.println(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Save tagged sentences in the cache
+     * @param sentences the sentences
+     * @param tagged the tagged sentences
+     */
+    public void save(List<String> sentences, TaggedSentences tagged){
+        File file = getFile(sentences);
+        if (file == null){
+            return;
+        }
+        // Write to a temporary file first, so other runs never read a half written file
+        File tempfile = new File(file.getPath()+"."+Thread.currentThread().getId()+".tmp");
+        try {
+            directory.mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempfile)));
+            try {
+                out.writeInt(magic);
+                out.writeInt(formatversion);
+                out.writeInt(tagged.getNumberOfWords());
+                Map<String, Integer> dictionary = new HashMap<String, Integer>();
+                out.writeInt(tagged.getWordstats().size());
+                for (Map.Entry<String, Double> entry : tagged.getWordstats().entrySet()){
+                    dictionary.put(entry.getKey(), dictionary.size());
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().intValue());
+                }
+                String[][] words = tagged.getWords();
+                byte[][] pos = tagged.getPOS();
+                out.writeInt(words.length);
+                for (int i = 0; i < words.length; i++){
+                    out.writeInt(words[i].length);
+                    for (String word : words[i]){
+                        out.writeInt(dictionary.get(word));
+                    }
+                    out.write(pos[i]);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tempfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println(ex);
+            tempfile.delete();
+        }
+    }
+
+    /**
+     * Get the file of a list of sentences
+     * @param sentences the sentences
+     * @return the file, null if no hash could be calculated
+     */
+    private File getFile(List<String> sentences){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((formatversion+"\n"+modelfingerprint+"\n").getBytes(StandardCharsets.UTF_8));
+            for (String sentence : sentences){
+                digest.update(sentence.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)'\n');
+            }
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest()){
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name.append(".corpus").toString());
+        } catch (NoSuchAlgorithmException ex) {
+            System.err.println(ex);
+            return null;
+        }
+    }
+}
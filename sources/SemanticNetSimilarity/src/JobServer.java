@@ -0,0 +1,130 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Service that keeps running and synchronizes the jobs it receives on a local port, so the models, WordNet
+ * and the caches are only loaded once instead of for every job. Every connection is one job: a line with the
+ * parameters (separated by spaces), a line with the number of book sentences followed by the book sentences
+ * (one per line), and the same for the subtitles. The matches and the progress are sent back in the same lines
+ * as the application prints, the connection is closed when the job is done. A job that fails sends the line
+ * "error - reason" before the connection is closed.
+ * @author jeknocka
+ */
+public class JobServer {
+
+    private final int port;
+    private final int paralleljobs;
+    private final Job job;
+
+    // A synchronisation job
+    public interface Job{
+        /**
+         * Synchronizes a book and subtitles
+         * @param booksentences the sentences of the book
+         * @param subtitlesentences the sentences of the subtitles
+         * @param parameters the parameters of the job (the arguments of the application after the file names)
+         * @param out the output for the matches and the progress
+         * @throws Exception the job failed
+         */
+        void run(List<String> booksentences, List<String> subtitlesentences, String[] parameters, PrintStream out) throws Exception;
+    }
+
+    /**
+     * Creates a service on the given port
+     * @param port the local port
+     * @param paralleljobs the number of jobs that run at the same time, the others wait
+     * @param job the job that is run for every connection
+     */
+    public JobServer(int port, int paralleljobs, Job job){
+        this.port = port;
+        this.paralleljobs = Math.max(1, paralleljobs);
+        this.job = job;
+    }
+
+    /**
+     * Accept jobs until the application is stopped
+     * @throws IOException the port can't be used
+     */
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1")); // Only local connections
+        ExecutorService executor = Executors.newFixedThreadPool(paralleljobs);
+        System.err.println("listening on port "+server.getLocalPort());
+        while (true){
+            final Socket socket = server.accept();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Read a job from a connection, run it and close the connection
+     * @param socket the connection
+     */
+    private void handle(Socket socket){
+        try {
+            try {
+                // Every line is sent as soon as it is printed
+                PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, "UTF-8");
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    String parameters = in.readLine();
+                    if (parameters == null){
+                        throw new EOFException("No job received");
+                    }
+                    List<String> booksentences = readSentences(in);
+                    List<String> subtitlesentences = readSentences(in);
+                    job.run(booksentences, subtitlesentences, parameters.trim().split(" +"), out);
+                } catch (Exception ex) { // The client would take the matches so far for the result
+                    out.println("error - "+ex.toString().replaceAll("[\\r\\n]+", " "));
+                    throw ex;
+                }
+                out.flush();
+            } finally {
+                socket.close();
+            }
+        } catch (Exception ex) { // Only this job fails
+            System.err.println(ex);
+        } finally {
+            Thread.interrupted(); // An interrupted job doesn't stop the next job of this thread
+        }
+    }
+
+    /**
+     * Read a number of sentences followed by the sentences
+     * @param in the input of the connection
+     * @return the sentences
+     * @throws IOException reading failed or the connection was closed too soon
+     */
+    private static List<String> readSentences(BufferedReader in) throws IOException {
+        String count = in.readLine();
+        if (count == null){
+            throw new EOFException("Incomplete job");
+        }
+        int numberofsentences = Integer.parseInt(count.trim());
+        List<String> sentences = new ArrayList<String>(numberofsentences);
+        for (int i = 0; i < numberofsentences; i++){
+            String sentence = in.readLine();
+            if (sentence == null){
+                throw new EOFException("Incomplete job");
+            }
+            sentences.add(sentence);
+        }
+        return sentences;
+    }
+}
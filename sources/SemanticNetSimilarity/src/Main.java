@@ -1,9 +1,19 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Application that calculates the WordNet similarity between each two words in a given input file
@@ -17,12 +27,55 @@ public class Main {
      * @throws java.io.IOException something wrong with the input file
      */
     public static void main(String[] args) throws IOException {
+        // In service mode the jobs are received on a local port instead
+        int daemonport = Integer.getInteger("semanticnet.daemonport", 0);
+        // With the binary protocol the job is read from the standard input instead
+        boolean binary = Boolean.getBoolean("semanticnet.binary");
+        
         // Look for filenames of inputfile
-        if (args.length != 8){
+        if (daemonport <= 0 && !binary && args.length != 8){
             System.err.println("needs <book> <subtitle> <mindelta> <minnumberofwords> <relsearchwindow> <minimumscorefortimewindow> <minwordsim> <relativelexicalimportance> as argument");
             System.exit(0);
         }
         
+        // Optional settings are passed as system properties (-Dname=value)
+        WordSimilarity.getInstance().configureCaches(Integer.getInteger("semanticnet.cachememory", 0),
+                !"fifo".equals(System.getProperty("semanticnet.cachepolicy")));
+        SimilarityStore store = null;
+        if (System.getProperty("semanticnet.store") != null){
+            try {
+                store = new SimilarityStore(new File(System.getProperty("semanticnet.store")), new File("dict"));
+                WordSimilarity.getInstance().setStore(store);
+            } catch (IOException ex) { // Run without the store
+                System.err.println(ex);
+            }
+        }
+        final SimilarityStore sharedstore = store;
+        
+        if (daemonport > 0){
+            // WordNet, the caches and the store stay loaded for all jobs, the jobs that run at the same time share the threads
+            final ExecutorService sharedexecutor = Executors.newFixedThreadPool(getThreads());
+            new JobServer(daemonport, Integer.getInteger("semanticnet.daemonjobs", 2), new JobServer.Job() {
+                @Override
+                public void run(List<String> booksentences, List<String> subtitlesentences, String[] parameters, PrintStream out) {
+                    synchronize(booksentences, subtitlesentences, parameters, new TextMatchOutput(out), sharedstore, sharedexecutor);
+                }
+            }).serve();
+            return;
+        }
+        
+        if (binary){
+            // Only the frames of the protocol are written to the standard output
+            BinaryProtocol output = new BinaryProtocol(Channels.newChannel(new FileOutputStream(FileDescriptor.out)));
+            System.setOut(System.err);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+            List<String> parameters = BinaryProtocol.readStrings(in);
+            List<String> booksentences = BinaryProtocol.readStrings(in);
+            List<String> subtitlesentences = BinaryProtocol.readStrings(in);
+            synchronize(booksentences, subtitlesentences, parameters.toArray(new String[parameters.size()]), output, store, null);
+            return;
+        }
+        
         // Read in the sentences
         List<String> booksentences = new ArrayList<String>();
         List<String> subtitlesentences = new ArrayList<String>();
@@ -43,15 +96,63 @@ public class Main {
         } catch (IOException ex) {
             System.err.println(ex);
         }
-        float mindelta = Float.parseFloat(args[2]);
-        int minnumberofwords = Integer.parseInt(args[3]);
-        float relsearchwindow = Float.parseFloat(args[4]);
-        float minimumscorefortimewindow = Float.parseFloat(args[5]);
-        float minwordsim = Float.parseFloat(args[6]);
-        float relativelexicalimportance = Float.parseFloat(args[7]);
+        synchronize(booksentences, subtitlesentences, Arrays.copyOfRange(args, 2, 8), new TextMatchOutput(System.out), store, null);
+    }
+    
+    /**
+     * Synchronizes a book and subtitles and prints the matches
+     * @param booksentences the sentences of the book
+     * @param subtitlesentences the sentences of the subtitles
+     * @param parameters <mindelta> <minnumberofwords> <relsearchwindow> <minimumscorefortimewindow> <minwordsim> <relativelexicalimportance>
+     * @param output the output for the matches and the progress
+     * @param store the store of the word similarities, null if it isn't used
+     * @param executor the threads that are shared with the other jobs, null to start threads for this job
+     */
+    private static void synchronize(List<String> booksentences, List<String> subtitlesentences, String[] parameters, MatchOutput output,
+            SimilarityStore store, ExecutorService executor){
+        if (parameters.length != 6){
+            throw new IllegalArgumentException("needs <mindelta> <minnumberofwords> <relsearchwindow> <minimumscorefortimewindow> <minwordsim> <relativelexicalimportance> as parameters");
+        }
+        float mindelta = Float.parseFloat(parameters[0]);
+        int minnumberofwords = Integer.parseInt(parameters[1]);
+        float relsearchwindow = Float.parseFloat(parameters[2]);
+        float minimumscorefortimewindow = Float.parseFloat(parameters[3]);
+        float minwordsim = Float.parseFloat(parameters[4]);
+        float relativelexicalimportance = Float.parseFloat(parameters[5]);
         
         SemanticSimilarity semsim = new SemanticSimilarity(mindelta,minnumberofwords,relsearchwindow,minimumscorefortimewindow,minwordsim,relativelexicalimportance);
+        semsim.setOutput(output);
+        semsim.setThreads(getThreads());
+        semsim.setExecutor(executor);
+        semsim.setCandidateIndex(!"false".equals(System.getProperty("semanticnet.candidates")));
+        semsim.setBand(Float.parseFloat(System.getProperty("semanticnet.band", "0")));
+        if (System.getProperty("semanticnet.corpuscache") != null){
+            semsim.setCorpusCache(new CorpusCache(new File(System.getProperty("semanticnet.corpuscache")), SemanticSimilarity.getPOSModelFile()));
+        }
         semsim.synchronize(booksentences, subtitlesentences);
         
+        // Keep the new similarities for the next runs
+        if (store != null){
+            try {
+                store.close();
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+        }
+        
+        // Report the cache statistics after the run
+        if (Boolean.getBoolean("semanticnet.statistics")){
+            System.err.print(WordSimilarity.getInstance().getCacheStatistics());
+            System.err.format("pairs - scored %d - pruned %d%n", semsim.getScoredPairs(), semsim.getPrunedPairs());
+            System.err.format("band - fallbacks %d%n", semsim.getBandFallbacks());
+        }
+    }
+    
+    /**
+     * Get the number of threads for the parallel work
+     * @return the number of threads (semanticnet.threads, by default the number of processors)
+     */
+    private static int getThreads(){
+        return Integer.getInteger("semanticnet.threads", Runtime.getRuntime().availableProcessors());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,238 @@
+import java.util.Arrays;
+
+/**
+ * Cache for similarity values of word pairs, keyed by the packed ids of both words.
+ * Keys and values are kept in primitive open addressing tables, so lookups don't allocate.
+ * The tables are spread over segments with their own lock. A bounded cache keeps two generations 
+ * per segment: when the current generation is full, it replaces the previous one 
+ * and values that are still used are moved back into the new generation on lookup.
+ * @author jeknocka
+ */
+public class PairSimilarityCache implements CacheStatistics {
+    
+    // Number of segments (power of two)
+    private static final int nrofsegments = 16;
+    // Key of an empty slot (real keys are never negative)
+    private static final long emptykey = -1;
+    
+    private final Segment[] segments;
+    
+    // Class to represent a segment of the cache, all access goes trough the segment lock
+    private static class Segment{
+        private final int maxentries; // 0 if unbounded
+        private long[] keys;
+        private double[] values;
+        private int size;
+        private long[] previouskeys;
+        private double[] previousvalues;
+        private int previoussize;
+        private long hits;
+        private long misses;
+        private long evictions;
+        
+        public Segment(int maxentries){
+            this.maxentries = maxentries;
+            int capacity = 64;
+            while (maxentries > 0 && capacity < 2*maxentries){
+                capacity *= 2;
+            }
+            keys = newTable(capacity);
+            values = new double[capacity];
+        }
+    }
+
+    /**
+     * Create a cache with the given bound
+     * @param maxentries the maximum number of entries, 0 or less for an unbounded cache
+     */
+    public PairSimilarityCache(int maxentries){
+        segments = new Segment[nrofsegments];
+        int maxsegmententries = (maxentries > 0)?Math.max(1, maxentries/nrofsegments):0;
+        for (int i = 0; i < nrofsegments; i++){
+            segments[i] = new Segment(maxsegmententries);
+        }
+    }
+    
+    /**
+     * Pack the ids of two words in one key, independent of the order of the words
+     * @param word1 id of the first word
+     * @param word2 id of the second word
+     * @return the key
+     */
+    public static long getKey(int word1, int word2){
+        return (word1 <= word2)?((long)word1 << 32)|word2:((long)word2 << 32)|word1;
+    }
+    
+    /**
+     * Get a similarity value from the cache
+     * @param key the key of the word pair
+     * @return the similarity value, -1 if not cached
+     */
+    public double get(long key){
+        int hash = hash(key);
+        Segment segment = segments[hash & (nrofsegments-1)];
+        synchronized (segment){
+            int slot = find(segment.keys, key, hash);
+            if (segment.keys[slot] == key){
+                segment.hits++;
+                return segment.values[slot];
+            }
+            if (segment.previouskeys != null){ // Look in the previous generation and keep the value if found
+                int previousslot = find(segment.previouskeys, key, hash);
+                if (segment.previouskeys[previousslot] == key){
+                    segment.hits++;
+                    double value = segment.previousvalues[previousslot];
+                    insert(segment, key, hash, value);
+                    return value;
+                }
+            }
+            segment.misses++;
+            return -1;
+        }
+    }
+    
+    /**
+     * Add a similarity value to the cache
+     * @param key the key of the word pair
+     * @param value the similarity value
+     */
+    public void put(long key, double value){
+        int hash = hash(key);
+        Segment segment = segments[hash & (nrofsegments-1)];
+        synchronized (segment){
+            insert(segment, key, hash, value);
+        }
+    }
+    
+    /**
+     * Insert a value in the current generation of a segment, the caller holds the segment lock
+     * @param segment the segment
+     * @param key the key
+     * @param hash the hash of the key
+     * @param value the value
+     */
+    private static void insert(Segment segment, long key, int hash, double value){
+        int slot = find(segment.keys, key, hash);
+        if (segment.keys[slot] == key){
+            segment.values[slot] = value;
+            return;
+        }
+        if (segment.maxentries > 0 && segment.size >= segment.maxentries){
+            // Start a new generation, the entries of the previous one are evicted
+            segment.evictions += segment.previoussize;
+            segment.previouskeys = segment.keys;
+            segment.previousvalues = segment.values;
+            segment.previoussize = segment.size;
+            segment.keys = newTable(segment.keys.length);
+            segment.values = new double[segment.keys.length];
+            segment.size = 0;
+            slot = find(segment.keys, key, hash);
+        }
+        else if (segment.maxentries <= 0 && 2*(segment.size+1) > segment.keys.length){
+            grow(segment);
+            slot = find(segment.keys, key, hash);
+        }
+        segment.keys[slot] = key;
+        segment.values[slot] = value;
+        segment.size++;
+    }
+    
+    /**
+     * Double the capacity of an unbounded segment
+     * @param segment the segment
+     */
+    private static void grow(Segment segment){
+        long[] oldkeys = segment.keys;
+        double[] oldvalues = segment.values;
+        segment.keys = newTable(oldkeys.length*2);
+        segment.values = new double[oldkeys.length*2];
+        for (int i = 0; i < oldkeys.length; i++){
+            if (oldkeys[i] != emptykey){
+                int slot = find(segment.keys, oldkeys[i], hash(oldkeys[i]));
+                segment.keys[slot] = oldkeys[i];
+                segment.values[slot] = oldvalues[i];
+            }
+        }
+    }
+    
+    /**
+     * Find the slot of a key with linear probing
+     * @param keys the table
+     * @param key the key
+     * @param hash the hash of the key
+     * @return the slot that contains the key, or the empty slot where it should be inserted
+     */
+    private static int find(long[] keys, long key, int hash){
+        int mask = keys.length-1;
+        int slot = (hash >>> 4) & mask; // The lowest bits select the segment
+        while (keys[slot] != emptykey && keys[slot] != key){
+            slot = (slot+1) & mask;
+        }
+        return slot;
+    }
+    
+    /**
+     * Create an empty table
+     * @param capacity the capacity (power of two)
+     * @return the table
+     */
+    private static long[] newTable(int capacity){
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, emptykey);
+        return keys;
+    }
+    
+    /**
+     * Spread the bits of a key
+     * @param key the key
+     * @return the hash
+     */
+    private static int hash(long key){
+        long h = key*0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments){
+            synchronized (segment){
+                size += segment.size+segment.previoussize;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        long hits = 0;
+        for (Segment segment : segments){
+            synchronized (segment){
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        long misses = 0;
+        for (Segment segment : segments){
+            synchronized (segment){
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment segment : segments){
+            synchronized (segment){
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+}
@@ -1,17 +1,27 @@
 
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import opennlp.tools.postag.POSModel;
 import opennlp.tools.postag.POSTaggerME;
 import opennlp.tools.tokenize.SimpleTokenizer;
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.exception.MathArithmeticException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
 
 /**
  * Singleton class with functions to calculate semantic sentence similarity
@@ -28,15 +38,154 @@ public class SemanticSimilarity {
     private final double relativelexicalimportance; // Relative importance of lexical semantic similarity (vs. word order similarity)
     
     // Data for calculating similarity values
-    // Part-of-speech tags and tokens
-    private List<List<String>> bookTokens;
-    private List<List<String>> bookPOS;
-    private List<List<String>> subtitleTokens;
-    private List<List<String>> subtitlePOS;
-    // Corpus statistics
-    private Map<String, Double> corpusstats;
+    // Tokens (word ids of this run) and their terms in the similarity matrix (the word with its POS class)
+    private int[][] bookTokens;
+    private int[][] bookTerms;
+    private int[][] subtitleTokens;
+    private int[][] subtitleTerms;
+    // Precalculated similarities between the terms
+    private WordSimilarityMatrix wordsimilarities;
+    // Subtitles that contain each word and each term, null if all subtitles are scored
+    private int[][] subtitlesbyword;
+    private int[][] subtitlesbyterm;
+    // Weights of the sentences that are scored, to bound the similarity of a pair (null for the other sentences)
+    private SentenceWeights[] bookWeights;
+    private SentenceWeights[] subtitleWeights;
     
+    // Number of sentence pairs that were scored and that were skipped because of their bound
+    private final AtomicLong scoredpairs = new AtomicLong();
+    private final AtomicLong prunedpairs = new AtomicLong();
+    // Margin for rounding errors in the bounds
+    private static final double boundmargin = 1e-9;
+    // Number of different words in the book and subtitles, the words are numbered per run so the buffers
+    // don't grow with the vocabulary of earlier runs
+    private int numberofwords;
+    // Corpus statistics (information content weight for each word id)
+    private double[] corpusstats;
     
+    // Number of threads used to calculate the word similarities and score the book sentences (1 = sequential)
+    private int threads = 1;
+    // Threads shared with the other synchronisations of the service, null to create them for every synchronisation
+    private ExecutorService sharedexecutor;
+    
+    // Only score the subtitles that share a word or a similar word with the book sentence
+    private boolean candidateindex = true;
+    
+    // Width of the band around the expected subtitle on each side, relative to the number of subtitles (0 to score all subtitles)
+    private float bandwidth;
+    // Number of book sentences of which all subtitles were scored, because the band had no match
+    private long bandfallbacks;
+    
+    // Cache of tagged sentences, null if the sentences are always tagged
+    private CorpusCache corpuscache;
+    
+    // File of the POS model
+    private static final String posmodel = "models/en-pos-maxent.bin";
+    // The POS model, loaded once and shared by all instances (null until it is needed)
+    private static POSModel loadedposmodel;
+    
+    // Output for the matches and the progress
+    private MatchOutput output = new TextMatchOutput(System.out);
+    
+    // Buffers of a thread for calculating the similarity of sentence pairs, so no memory has to be allocated per pair
+    private static class PairScratch{
+        // Per word id: the pair in which the word was last seen and its index in the joint word set
+        private final int[] stamps;
+        private final int[] jointindices;
+        private int pair;
+        // Per word of the joint word set: the word, its term and its first position in both sentences (-1 if not included)
+        private final int[] jointwords;
+        private final int[] jointterms;
+        private final int[] bookpositions;
+        private final int[] subtitlepositions;
+        // Terms of the words of both sentences
+        private final int[] bookterms;
+        private final int[] subtitleterms;
+        // Similarity of the last best match
+        private double bestsimilarity;
+        // The subtitles that are scored for a book sentence, as a bitset and as a list
+        private final long[] candidates;
+        private final int[] candidatelist;
+        // Per word id: the book sentence in which the word was last seen and its index in the weights of the sentence
+        private final int[] bookstamps;
+        private final int[] bookindices;
+        private int booksentence;
+        
+        public PairScratch(int numberofwords, int maxbookwords, int maxsubtitlewords, int subtitles){
+            this.stamps = new int[numberofwords];
+            this.jointindices = new int[numberofwords];
+            this.jointwords = new int[maxbookwords+maxsubtitlewords];
+            this.jointterms = new int[maxbookwords+maxsubtitlewords];
+            this.bookpositions = new int[maxbookwords+maxsubtitlewords];
+            this.subtitlepositions = new int[maxbookwords+maxsubtitlewords];
+            this.bookterms = new int[maxbookwords];
+            this.subtitleterms = new int[maxsubtitlewords];
+            this.candidates = new long[(subtitles+63)/64];
+            this.candidatelist = new int[subtitles];
+            this.bookstamps = new int[numberofwords];
+            this.bookindices = new int[numberofwords];
+        }
+        
+        /**
+         * Starts a new pair, the words of the previous pairs are forgotten
+         * @return the stamp of the new pair
+         */
+        public int nextPair(){
+            if (pair == Integer.MAX_VALUE){
+                Arrays.fill(stamps, 0);
+                pair = 0;
+            }
+            return ++pair;
+        }
+        
+        /**
+         * Starts a new book sentence, the words of the previous book sentences are forgotten
+         * @return the stamp of the new book sentence
+         */
+        public int nextBookSentence(){
+            if (booksentence == Integer.MAX_VALUE){
+                Arrays.fill(bookstamps, 0);
+                booksentence = 0;
+            }
+            return ++booksentence;
+        }
+    }
+    
+    // Class to represent the weights of the different words of a sentence
+    private static class SentenceWeights{
+        private final int[] words;
+        private final double[] fourthpowers; // Square of the value of the word in the semantic vector
+        private final double[] cubes; // Third power of the weight, 0 if the word has no similar words
+        private final double norm; // Norm of the semantic vector, if only the words of the sentence count
+        private final double cubesum;
+        private final double maxweight;
+        
+        public SentenceWeights(int[] words, double[] fourthpowers, double[] cubes, double norm, double cubesum, double maxweight){
+            this.words = words;
+            this.fourthpowers = fourthpowers;
+            this.cubes = cubes;
+            this.norm = norm;
+            this.cubesum = cubesum;
+            this.maxweight = maxweight;
+        }
+    }
+    
+    // Buffers of each thread
+    private ThreadLocal<PairScratch> scratches;
+    
+    // Tokens with at least one letter or digit are words
+    private static final Pattern wordpattern = Pattern.compile(".*[a-zA-Z0-9].*");
+    
+    // Class to represent the best matching subtitles for a book sentence
+    private static class BestMatches{
+        private final List<Integer> submatches;
+        private final double maxscore;
+        
+        public BestMatches(List<Integer> submatches, double maxscore){
+            this.submatches = submatches;
+            this.maxscore = maxscore;
+        }
+    }
 
     /**
      * Constructor with defaults for threshold values
@@ -56,8 +205,92 @@ public class SemanticSimilarity {
         this.relativelexicalimportance = relativelexicalimportance;
     }
     
-    // Word Similarity instance
-    private final static WordSimilarity ws = WordSimilarity.getInstance();
+    // Ids of the words
+    private final static Vocabulary vocabulary = Vocabulary.getInstance();
+    
+    /**
+     * Sets the number of threads that calculate the word similarities and score book sentences in parallel
+     * @param threads the number of threads (1 or less works sequentially)
+     */
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+    
+    /**
+     * Sets the threads that run the parallel work, so synchronisations that run at the same time don't each
+     * start their own threads. The executor isn't shut down by the synchronisation.
+     * @param sharedexecutor the executor that runs the parallel work, null to start threads for every synchronisation
+     */
+    public void setExecutor(ExecutorService sharedexecutor){
+        this.sharedexecutor = sharedexecutor;
+    }
+    
+    /**
+     * Sets whether only the subtitles that share a word or a similar word with a book sentence are scored.
+     * This doesn't change the matches: the other subtitles have similarity 0.
+     * @param candidateindex true to use an index of the words of the subtitles, false to score all subtitles
+     */
+    public void setCandidateIndex(boolean candidateindex){
+        this.candidateindex = candidateindex;
+    }
+    
+    /**
+     * Sets the alignment mode: only the subtitles in a band around the expected position of a book sentence are scored,
+     * the band follows the confident matches. All subtitles are scored if none in the band is similar enough.
+     * The book sentences are then scored one after the other, because the band depends on the earlier matches.
+     * @param bandwidth the width of the band on each side, relative to the number of subtitles (0 to score all subtitles)
+     */
+    public void setBand(float bandwidth){
+        this.bandwidth = bandwidth;
+    }
+    
+    /**
+     * Sets the cache in which the tokenized and POS tagged sentences are kept between runs
+     * @param corpuscache the cache, null to always tag the sentences
+     */
+    public void setCorpusCache(CorpusCache corpuscache){
+        this.corpuscache = corpuscache;
+    }
+    
+    /**
+     * Sets the output for the matches and the progress
+     * @param output the output (lines of text on the standard output by default)
+     */
+    public void setOutput(MatchOutput output){
+        this.output = output;
+    }
+    
+    /**
+     * Get the file of the POS model
+     * @return the file
+     */
+    public static File getPOSModelFile(){
+        return new File(posmodel);
+    }
+    
+    /**
+     * Get the number of sentence pairs that were scored
+     * @return the number of scored pairs
+     */
+    public long getScoredPairs(){
+        return scoredpairs.get();
+    }
+    
+    /**
+     * Get the number of sentence pairs that were skipped, because their similarity couldn't beat the best match
+     * @return the number of skipped pairs
+     */
+    public long getPrunedPairs(){
+        return prunedpairs.get();
+    }
+    
+    /**
+     * Get the number of book sentences of which all subtitles were scored, because the alignment band had no match
+     * @return the number of book sentences
+     */
+    public long getBandFallbacks(){
+        return bandfallbacks;
+    }
     
     /**
      * Initializes all data needed for calculating similarity values
@@ -66,20 +299,209 @@ public class SemanticSimilarity {
      */
     private void init(List<String> booksentences, List<String> subtitlesentences){
         // Initialize the lists
-        bookTokens = new ArrayList<List<String>>();
-        bookPOS = new ArrayList<List<String>>();
-        subtitleTokens = new ArrayList<List<String>>();
-        subtitlePOS = new ArrayList<List<String>>();
-        corpusstats = new HashMap<String, Double>();
+        bookTokens = new int[booksentences.size()][];
+        byte[][] bookPOS = new byte[booksentences.size()][];
+        subtitleTokens = new int[subtitlesentences.size()][];
+        byte[][] subtitlePOS = new byte[subtitlesentences.size()][];
+        Map<String, Double> wordstats = new HashMap<String, Double>();
         
-        int wordsinquotes = processSentences(booksentences, bookTokens, bookPOS, corpusstats);
-        int wordsinsubs = processSentences(subtitlesentences, subtitleTokens, subtitlePOS, corpusstats);
+        // Get the tagged sentences from the cache
+        TaggedSentences taggedbook = (corpuscache != null)?corpuscache.load(booksentences):null;
+        TaggedSentences taggedsubtitles = (corpuscache != null)?corpuscache.load(subtitlesentences):null;
+        // Tokenize and tag the others, the book and the subtitles in parallel with the same model
+        if (taggedbook == null || taggedsubtitles == null){
+            POSModel model = loadPOSModel();
+            ExecutorService executor = (threads > 1)?getExecutor():null;
+            List<Future<TaggedSentences>> bookparts = null;
+            List<Future<TaggedSentences>> subtitleparts = null;
+            try {
+                bookparts = (taggedbook == null)?tagSentences(booksentences, model, executor):null;
+                subtitleparts = (taggedsubtitles == null)?tagSentences(subtitlesentences, model, executor):null;
+                if (bookparts != null){
+                    taggedbook = joinParts(bookparts);
+                    if (corpuscache != null){
+                        corpuscache.save(booksentences, taggedbook);
+                    }
+                }
+                if (subtitleparts != null){
+                    taggedsubtitles = joinParts(subtitleparts);
+                    if (corpuscache != null){
+                        corpuscache.save(subtitlesentences, taggedsubtitles);
+                    }
+                }
+            } finally {
+                if (executor != null){ // Also stops the other parts when a part failed
+                    stopTasks(executor, bookparts);
+                    stopTasks(executor, subtitleparts);
+                }
+            }
+        }
+        Map<String, Integer> wordids = new HashMap<String, Integer>();
+        List<Integer> vocabularyids = new ArrayList<Integer>();
+        int wordsinquotes = processSentences(taggedbook, bookTokens, bookPOS, wordstats, wordids, vocabularyids);
+        int wordsinsubs = processSentences(taggedsubtitles, subtitleTokens, subtitlePOS, wordstats, wordids, vocabularyids);
         int totalwords = wordsinquotes+wordsinsubs;
+        numberofwords = wordids.size();
         // Calculate corpus statistics
-        for (Map.Entry<String, Double> entry : corpusstats.entrySet()) {
+        corpusstats = new double[numberofwords];
+        for (Map.Entry<String, Double> entry : wordstats.entrySet()) {
             double iw = 1-(Math.log(entry.getValue()+1)/Math.log(totalwords+1));
-            entry.setValue(iw);
+            corpusstats[wordids.get(entry.getKey())] = iw;
+        }
+        
+        // Calculate the similarities between the words of the sentences that will be scored
+        wordsimilarities = new WordSimilarityMatrix(minwordsim);
+        bookTerms = getTerms(bookTokens, bookPOS, vocabularyids, false);
+        subtitleTerms = getTerms(subtitleTokens, subtitlePOS, vocabularyids, true);
+        wordsimilarities.calculate(threads, sharedexecutor);
+        
+        // Index the subtitles that will be scored on their words and terms
+        if (candidateindex){
+            subtitlesbyword = getPostings(subtitleTokens, numberofwords);
+            subtitlesbyterm = getPostings(subtitleTerms, wordsimilarities.size());
+        }
+        else{
+            subtitlesbyword = null;
+            subtitlesbyterm = null;
+        }
+        
+        // Weights of the sentences that will be scored
+        bookWeights = getSentenceWeights(bookTokens, bookTerms);
+        subtitleWeights = getSentenceWeights(subtitleTokens, subtitleTerms);
+        
+        // Buffers of each thread, big enough for the longest sentences
+        final int words = numberofwords;
+        final int maxbookwords = getMaximumLength(bookTokens);
+        final int maxsubtitlewords = getMaximumLength(subtitleTokens);
+        final int subtitles = subtitleTokens.length;
+        scratches = new ThreadLocal<PairScratch>(){
+            @Override
+            protected PairScratch initialValue(){
+                return new PairScratch(words, maxbookwords, maxsubtitlewords, subtitles);
+            }
+        };
+    }
+    
+    /**
+     * Collects the weights of the different words of the sentences that will be scored
+     * @param tokens the tokenized sentences (word ids)
+     * @param terms the terms of the tokens
+     * @return the weights of each sentence, null for sentences that aren't scored
+     */
+    private SentenceWeights[] getSentenceWeights(int[][] tokens, int[][] terms){
+        SentenceWeights[] weights = new SentenceWeights[tokens.length];
+        int[] indices = new int[numberofwords];
+        int[] stamps = new int[numberofwords];
+        for (int i = 0; i < tokens.length; i++){
+            if (tokens[i].length >= minnumberofmatchingwords){
+                int[] words = new int[tokens[i].length];
+                double[] cubes = new double[tokens[i].length];
+                int size = 0;
+                for (int j = 0; j < tokens[i].length; j++){
+                    int word = tokens[i][j];
+                    if (stamps[word] != i+1){
+                        stamps[word] = i+1;
+                        indices[word] = size;
+                        words[size++] = word;
+                    }
+                    // Only a word with similar words can get a value in the vector of the other sentence when it's not in there
+                    int term = terms[i][j];
+                    if (term >= 0 && wordsimilarities.getSimilarTerms(term).length > 0){
+                        cubes[indices[word]] = corpusstats[word]*corpusstats[word]*corpusstats[word];
+                    }
+                }
+                double[] fourthpowers = new double[size];
+                double normsquare = 0;
+                double cubesum = 0;
+                double maxweight = 0;
+                for (int j = 0; j < size; j++){
+                    double weight = corpusstats[words[j]];
+                    fourthpowers[j] = (weight*weight)*(weight*weight);
+                    normsquare += fourthpowers[j];
+                    cubesum += cubes[j];
+                    maxweight = Math.max(maxweight, weight);
+                }
+                weights[i] = new SentenceWeights(Arrays.copyOf(words, size), fourthpowers, Arrays.copyOf(cubes, size), 
+                        Math.sqrt(normsquare), cubesum, maxweight);
+            }
         }
+        return weights;
+    }
+    
+    /**
+     * Builds an inverted index of the subtitles that will be scored
+     * @param subtitlevalues the words or terms of each subtitle (terms of -1 are left out)
+     * @param size the number of different words or terms
+     * @return for each word or term, the subtitles that contain it in ascending order
+     */
+    private int[][] getPostings(int[][] subtitlevalues, int size){
+        int[] counts = new int[size];
+        int[] lastsubtitle = new int[size];
+        Arrays.fill(lastsubtitle, -1);
+        for (int subindex = 0; subindex < subtitlevalues.length; subindex++){
+            if (subtitleTokens[subindex].length >= minnumberofmatchingwords){
+                for (int value : subtitlevalues[subindex]){
+                    if (value >= 0 && lastsubtitle[value] != subindex){
+                        lastsubtitle[value] = subindex;
+                        counts[value]++;
+                    }
+                }
+            }
+        }
+        int[][] postings = new int[size][];
+        for (int value = 0; value < size; value++){
+            postings[value] = new int[counts[value]];
+            counts[value] = 0;
+            lastsubtitle[value] = -1;
+        }
+        for (int subindex = 0; subindex < subtitlevalues.length; subindex++){
+            if (subtitleTokens[subindex].length >= minnumberofmatchingwords){
+                for (int value : subtitlevalues[subindex]){
+                    if (value >= 0 && lastsubtitle[value] != subindex){
+                        lastsubtitle[value] = subindex;
+                        postings[value][counts[value]++] = subindex;
+                    }
+                }
+            }
+        }
+        return postings;
+    }
+    
+    /**
+     * Get the number of words of the longest sentence
+     * @param tokens the tokenized sentences
+     * @return the number of words of the longest sentence
+     */
+    private static int getMaximumLength(int[][] tokens){
+        int maxlength = 0;
+        for (int[] sentence : tokens){
+            maxlength = Math.max(maxlength, sentence.length);
+        }
+        return maxlength;
+    }
+    
+    /**
+     * Adds the words of the sentences that are long enough to be scored to the similarity matrix
+     * @param tokens the tokenized sentences (word ids)
+     * @param pos the POS classes of the tokens
+     * @param vocabularyids the vocabulary id of each word id
+     * @param subtitle true for the sentences of the subtitles
+     * @return the terms of the tokens (empty for sentences that aren't scored)
+     */
+    private int[][] getTerms(int[][] tokens, byte[][] pos, List<Integer> vocabularyids, boolean subtitle){
+        int[][] terms = new int[tokens.length][];
+        for (int i = 0; i < tokens.length; i++){
+            if (tokens[i].length >= minnumberofmatchingwords){
+                terms[i] = new int[tokens[i].length];
+                for (int j = 0; j < tokens[i].length; j++){
+                    terms[i][j] = wordsimilarities.addTerm(vocabularyids.get(tokens[i][j]), pos[i][j], subtitle);
+                }
+            }
+            else{
+                terms[i] = new int[0];
+            }
+        }
+        return terms;
     }
     
     /**
@@ -91,63 +513,275 @@ public class SemanticSimilarity {
     public void synchronize(List<String> book, List<String> subtitles){
         // Perform initialisation
         init(book,subtitles);
+        // Subtitles by their normalized form, for the exact matches of short sentences
+        ExactMatchIndex subtitleindex = new ExactMatchIndex(subtitles);
+        // Band around the expected subtitle of each book sentence (null to score all subtitles)
+        AlignmentBand band = (bandwidth > 0)?new AlignmentBand(book.size(), subtitles.size(), bandwidth):null;
         
-	int lastindex = -1;
-        int previousprogress = -1;
-        for (int bookindex = 0; bookindex < book.size(); bookindex++){ 
-            int numberofbookwords = bookPOS.get(bookindex).size();
-            // The list of best matching subtitles (all with the maxscore)
-            List<Integer> submatches = new ArrayList<Integer>();
-            // Keep the best score for a subtitle in combination with the current book index
-            double maxscore = 0;
-            // If the sentence is very short, try to find an exact match within a certain window of the previous match
-            if (numberofbookwords < minnumberofmatchingwords && lastindex >= 0 && relsearchwindow >= 0){
-                int searchwindow = Math.round(relsearchwindow*subtitles.size());
-                int start = (lastindex-searchwindow > 0)?lastindex-searchwindow:0;
-                int end = (lastindex+searchwindow < subtitles.size())?lastindex+searchwindow:subtitles.size();
-                // Find exact matching subtitles for this quote
-                for (int subindex = start; subindex < end; subindex++){
-                    String cleanedbooksentence = book.get(bookindex).toLowerCase().replaceAll("[^a-zA-Z0-9]","").trim();
-                    String cleanedsubsentence = subtitles.get(subindex).toLowerCase().replaceAll("[^a-zA-Z0-9]","").trim();
-                    if (cleanedbooksentence.equals(cleanedsubsentence)){
-                        submatches.add(subindex);
+        // Sentences that are long enough don't depend on earlier matches, so they can be scored ahead in parallel
+        ExecutorService executor = null;
+        List<Future<BestMatches>> scoredsentences = null;
+        try {
+            if (threads > 1 && bandwidth <= 0){
+                executor = getExecutor();
+                scoredsentences = new ArrayList<Future<BestMatches>>();
+                for (int bookindex = 0; bookindex < book.size(); bookindex++){
+                    if (bookTokens[bookindex].length >= minnumberofmatchingwords){
+                        final int index = bookindex;
+                        scoredsentences.add(executor.submit(new Callable<BestMatches>() {
+                            @Override
+                            public BestMatches call() {
+                                return findBestMatches(index, 0, subtitleTokens.length);
+                            }
+                        }));
+                    }
+                    else{
+                        scoredsentences.add(null);
                     }
                 }
-                maxscore = 1;
-            }
-            else if (numberofbookwords >= minnumberofmatchingwords) {
-                // Find the best matching subtitles for this quote
-                for (int subindex = 0; subindex < subtitles.size(); subindex++){
-                    int numberofsubwords = subtitlePOS.get(subindex).size();
-                    if (numberofsubwords >= minnumberofmatchingwords){
-                        // The relative number of matching words (the score)
-                        double score = getSentenceSimilarity(bookindex,subindex);
-
-                        // If the similarity measure is at least delta and the new match for the quote
-                        // is at least as good as the previous one, add the subtitle to the array of matches for the quote
-                        if (score >= mindelta && score > maxscore){
-                            // Reset resultsarray if an absolute better match has been found
-                            if (score > maxscore){ 
-                                submatches = new ArrayList<Integer>();
-                            }					
-                            submatches.add(subindex);	
-                            maxscore = score;
+            }
+        
+            int lastindex = -1;
+            int previousprogress = -1;
+            for (int bookindex = 0; bookindex < book.size(); bookindex++){ 
+                int numberofbookwords = bookTokens[bookindex].length;
+                // The list of best matching subtitles (all with the maxscore)
+                List<Integer> submatches = new ArrayList<Integer>();
+                // Keep the best score for a subtitle in combination with the current book index
+                double maxscore = 0;
+                // If the sentence is very short, try to find an exact match within a certain window of the previous match
+                if (numberofbookwords < minnumberofmatchingwords && lastindex >= 0 && relsearchwindow >= 0){
+                    int searchwindow = Math.round(relsearchwindow*subtitles.size());
+                    int start = (lastindex-searchwindow > 0)?lastindex-searchwindow:0;
+                    int end = (lastindex+searchwindow < subtitles.size())?lastindex+searchwindow:subtitles.size();
+                    // Find exact matching subtitles for this quote
+                    subtitleindex.findMatches(book.get(bookindex), start, end, submatches);
+                    maxscore = 1;
+                }
+                else if (numberofbookwords >= minnumberofmatchingwords) {
+                    BestMatches bestmatches;
+                    if (band != null){
+                        // Find the best matching subtitles in the band, or in all subtitles if the band has no match
+                        bestmatches = findBestMatches(bookindex, band.getStart(bookindex), band.getEnd(bookindex));
+                        if (bestmatches.submatches.isEmpty()){
+                            bandfallbacks++;
+                            bestmatches = findBestMatches(bookindex, 0, subtitles.size());
+                        }
+                    }
+                    else{
+                        // Find the best matching subtitles for this quote (or wait for the thread that scores it)
+                        bestmatches = (scoredsentences != null)?getScoredSentence(scoredsentences.get(bookindex)):findBestMatches(bookindex, 0, subtitles.size());
+                    }
+                    submatches = bestmatches.submatches;
+                    maxscore = bestmatches.maxscore;
+                }
+                for (int matchvalue : submatches){
+                    if (numberofbookwords >= minnumberofmatchingwords && maxscore >= minimumscorefortimewindow){
+                        lastindex = matchvalue;
+                        if (band != null){
+                            band.addMatch(bookindex, matchvalue);
                         }
                     }
+                    output.addMatch(matchvalue,bookindex,maxscore);
                 }
+                int progress = (int)Math.floor(((bookindex+1)*100)/book.size());
+                if (progress > previousprogress){
+                    output.setProgress("similarityprogress", progress);
+                    previousprogress = progress;
+                }            
             }
-            for (int matchvalue : submatches){
-                if (numberofbookwords >= minnumberofmatchingwords && maxscore >= minimumscorefortimewindow){
-                    lastindex = matchvalue;
+            output.flush();
+        } finally {
+            if (executor != null){ // Also stops the sentences that weren't scored when a sentence failed
+                stopTasks(executor, scoredsentences);
+            }
+        }
+    }
+    
+    /**
+     * Get the executor for the parallel work of this synchronisation
+     * @return the shared executor, or else a new pool of threads (see stopTasks)
+     */
+    private ExecutorService getExecutor(){
+        return (sharedexecutor != null)?sharedexecutor:Executors.newFixedThreadPool(threads);
+    }
+    
+    /**
+     * Stops the tasks of this synchronisation that didn't start yet, a pool of this synchronisation is shut down
+     * @param executor the executor from getExecutor
+     * @param tasks the tasks that were given to the executor (null entries are skipped), can be null
+     */
+    private void stopTasks(ExecutorService executor, List<? extends Future<?>> tasks){
+        if (executor != sharedexecutor){
+            executor.shutdownNow();
+        }
+        else if (tasks != null){
+            for (Future<?> task : tasks){
+                if (task != null){
+                    task.cancel(false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits for a book sentence that is being scored by another thread
+     * @param scoredsentence the pending result of the scoring thread
+     * @return the best matching subtitles and their score
+     * @throws IllegalStateException waiting was interrupted (a failed thread throws its own exception)
+     */
+    private BestMatches getScoredSentence(Future<BestMatches> scoredsentence){
+        try {
+            return scoredsentence.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) { // The sentence would lose all its matches
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }
+            else if (cause instanceof Error){
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+    
+    /**
+     * Finds the best matching subtitles for a book sentence that has enough words
+     * @param bookindex index for the sentence from the book
+     * @param start the first subtitle that is scored
+     * @param end the end of the subtitles that are scored (exclusive)
+     * @return the best matching subtitles and their score
+     */
+    private BestMatches findBestMatches(int bookindex, int start, int end){
+        // The list of best matching subtitles (all with the maxscore)
+        List<Integer> submatches = new ArrayList<Integer>();
+        // Keep the best score for a subtitle in combination with the current book index
+        double maxscore = 0;
+        PairScratch scratch = scratches.get();
+        int candidatecount = getCandidates(bookindex, start, end, scratch);
+        // Remember where the words of the book sentence are in its weights
+        SentenceWeights bookweights = bookWeights[bookindex];
+        int booksentence = scratch.nextBookSentence();
+        for (int i = 0; i < bookweights.words.length; i++){
+            scratch.bookstamps[bookweights.words[i]] = booksentence;
+            scratch.bookindices[bookweights.words[i]] = i;
+        }
+        long scored = 0;
+        long pruned = 0;
+        for (int candidate = 0; candidate < candidatecount; candidate++){
+            int subindex = scratch.candidatelist[candidate];
+            int numberofsubwords = subtitleTokens[subindex].length;
+            if (numberofsubwords >= minnumberofmatchingwords){
+                // Skip the subtitle if it can't reach mindelta or beat the best match
+                double bound = getUpperBound(bookweights, subtitleWeights[subindex], booksentence, scratch);
+                if (bound+boundmargin < mindelta || bound+boundmargin <= maxscore){
+                    pruned++;
+                    continue;
+                }
+                scored++;
+                
+                // The relative number of matching words (the score)
+                double score = getSentenceSimilarity(bookindex,subindex,scratch);
+
+                // If the similarity measure is at least delta and the new match for the quote
+                // is at least as good as the previous one, add the subtitle to the array of matches for the quote
+                if (score >= mindelta && score > maxscore){
+                    // Reset resultsarray if an absolute better match has been found
+                    if (score > maxscore){ 
+                        submatches = new ArrayList<Integer>();
+                    }					
+                    submatches.add(subindex);	
+                    maxscore = score;
+                }
+            }
+        }
+        scoredpairs.addAndGet(scored);
+        prunedpairs.addAndGet(pruned);
+        return new BestMatches(submatches, maxscore);
+    }
+    
+    /**
+     * Calculates an upper bound for the similarity of two sentences, based on the weights of their words.
+     * The word order similarity is at most 1. In the cosine of the semantic vectors, a shared word adds its 
+     * fourth power to the dot product, a word that is in one sentence adds at most the third power of its weight 
+     * times the biggest weight of the other sentence, and the norms are at least those of the own words.
+     * @param bookweights the weights of the book sentence
+     * @param subweights the weights of the subtitle
+     * @param booksentence the stamp of the words of the book sentence
+     * @param scratch the buffers of the current thread
+     * @return the upper bound
+     */
+    private double getUpperBound(SentenceWeights bookweights, SentenceWeights subweights, int booksentence, PairScratch scratch){
+        if (relativelexicalimportance < 0 || relativelexicalimportance > 1 || bookweights.norm == 0 || subweights.norm == 0){
+            return Double.POSITIVE_INFINITY; // No bound
+        }
+        double shared = 0;
+        double sharedbookcubes = 0;
+        double sharedsubcubes = 0;
+        for (int i = 0; i < subweights.words.length; i++){
+            int word = subweights.words[i];
+            if (scratch.bookstamps[word] == booksentence){
+                shared += subweights.fourthpowers[i];
+                sharedbookcubes += bookweights.cubes[scratch.bookindices[word]];
+                sharedsubcubes += subweights.cubes[i];
+            }
+        }
+        double dotproduct = shared+(bookweights.cubesum-sharedbookcubes)*subweights.maxweight
+                +(subweights.cubesum-sharedsubcubes)*bookweights.maxweight;
+        double cosine = Math.min(1, dotproduct/(bookweights.norm*subweights.norm));
+        return relativelexicalimportance*cosine+(1-relativelexicalimportance);
+    }
+    
+    /**
+     * Finds the subtitles that have to be scored for a book sentence. 
+     * A subtitle that shares no word with the sentence and has no word that is similar enough to one of its words 
+     * has similarity 0 (both vectors of the sentences are orthogonal), so it can't be a match.
+     * @param bookindex index for the sentence from the book
+     * @param start the first subtitle that can be a candidate
+     * @param end the end of the subtitles that can be candidates (exclusive)
+     * @param scratch the buffers of the current thread, in which the list of subtitles is put
+     * @return the number of subtitles in the list (in ascending order)
+     */
+    private int getCandidates(int bookindex, int start, int end, PairScratch scratch){
+        int count = 0;
+        if (subtitlesbyword == null){ // No index, score all subtitles
+            for (int subindex = start; subindex < end; subindex++){
+                scratch.candidatelist[count++] = subindex;
+            }
+            return count;
+        }
+        long[] candidates = scratch.candidates;
+        int[] bookWords = bookTokens[bookindex];
+        int[] bookWordsTerms = bookTerms[bookindex];
+        for (int i = 0; i < bookWords.length; i++){
+            // Subtitles with the same word
+            for (int subindex : subtitlesbyword[bookWords[i]]){
+                candidates[subindex >>> 6] |= 1L << subindex;
+            }
+            // Subtitles with a similar word
+            if (bookWordsTerms[i] >= 0){
+                for (int similarterm : wordsimilarities.getSimilarTerms(bookWordsTerms[i])){
+                    for (int subindex : subtitlesbyterm[similarterm]){
+                        candidates[subindex >>> 6] |= 1L << subindex;
+                    }
+                }
+            }
+        }
+        for (int block = 0; block < candidates.length; block++){
+            long bits = candidates[block];
+            candidates[block] = 0;
+            while (bits != 0){
+                int subindex = (block << 6)+Long.numberOfTrailingZeros(bits);
+                if (subindex >= start && subindex < end){
+                    scratch.candidatelist[count++] = subindex;
                 }
-                System.out.format("match - %d - %d - %.2f\n",matchvalue,bookindex,maxscore);
+                bits &= bits-1;
             }
-            int progress = (int)Math.floor(((bookindex+1)*100)/book.size());
-            if (progress > previousprogress){
-                System.out.println("similarityprogress - "+progress+"%");
-                previousprogress = progress;
-            }            
         }
+        return count;
     }
 
     
@@ -159,146 +793,169 @@ public class SemanticSimilarity {
      * @return the similarity value (between 0 and 1)
      */
     public double getSentenceSimilarity(int bookindex, int subindex){
-        List<String> bookWords = bookTokens.get(bookindex);
-        List<String> bookWordsPos = bookPOS.get(bookindex);
-        List<String> subtitleWords = subtitleTokens.get(subindex);
-        List<String> subtitleWordsPOS = subtitlePOS.get(subindex);
+        return getSentenceSimilarity(bookindex, subindex, scratches.get());
+    }
+    
+    /**
+     * Calculates the similarity between two sentences based on a mixture of lexical
+     * semantic similarity and word order similarity.
+     * The best matching word of each sentence is looked up once for every word of the joint word set, 
+     * and the semantic and word order vectors are summed up directly (in the same order as the vectors would be).
+     * @param bookindex index for the sentence from the book
+     * @param subindex index for the sentence from the subtitles
+     * @param scratch the buffers of the current thread
+     * @return the similarity value (between 0 and 1)
+     */
+    private double getSentenceSimilarity(int bookindex, int subindex, PairScratch scratch){
+        int[] bookWords = bookTokens[bookindex];
+        int[] bookWordsTerms = bookTerms[bookindex];
+        int[] subtitleWords = subtitleTokens[subindex];
+        int[] subtitleWordsTerms = subtitleTerms[subindex];
         
-        // Get joint word set
-        List<String> jointwordset = new ArrayList<String>();
-        for (String word : bookWords){
-            if (!jointwordset.contains(word)){
-                jointwordset.add(word);
+        // Get joint word set, with the term of each word (the last POS tag of the word is used) 
+        // and the first position of the word in both sentences
+        int pair = scratch.nextPair();
+        int jointsize = 0;
+        for (int i = 0; i < bookWords.length; i++){
+            int word = bookWords[i];
+            int index;
+            if (scratch.stamps[word] != pair){
+                index = jointsize++;
+                scratch.stamps[word] = pair;
+                scratch.jointindices[word] = index;
+                scratch.jointwords[index] = word;
+                scratch.bookpositions[index] = i;
+                scratch.subtitlepositions[index] = -1;
+            }
+            else{
+                index = scratch.jointindices[word];
             }
+            scratch.jointterms[index] = bookWordsTerms[i];
         }
-        for (String word : subtitleWords){
-            if (!jointwordset.contains(word)){
-                jointwordset.add(word);
+        for (int i = 0; i < subtitleWords.length; i++){
+            int word = subtitleWords[i];
+            int index;
+            if (scratch.stamps[word] != pair){
+                index = jointsize++;
+                scratch.stamps[word] = pair;
+                scratch.jointindices[word] = index;
+                scratch.jointwords[index] = word;
+                scratch.bookpositions[index] = -1;
+                scratch.subtitlepositions[index] = i;
+            }
+            else{
+                index = scratch.jointindices[word];
+                if (scratch.subtitlepositions[index] == -1){
+                    scratch.subtitlepositions[index] = i;
+                }
             }
+            scratch.jointterms[index] = subtitleWordsTerms[i];
         }
-        
-        Map<String, String> posmap = new HashMap<String, String>();
-        for (int i = 0; i < bookWords.size(); i++){
-            posmap.put(bookWords.get(i), bookWordsPos.get(i));
+        // The terms of the words of both sentences, as they are in the joint word set
+        for (int i = 0; i < bookWords.length; i++){
+            scratch.bookterms[i] = scratch.jointterms[scratch.jointindices[bookWords[i]]];
+        }
+        for (int i = 0; i < subtitleWords.length; i++){
+            scratch.subtitleterms[i] = scratch.jointterms[scratch.jointindices[subtitleWords[i]]];
         }
-        for (int i = 0; i < subtitleWords.size(); i++){
-            posmap.put(subtitleWords.get(i), subtitleWordsPOS.get(i));
+        
+        double dotproduct = 0;
+        double semanticnorm1 = 0;
+        double semanticnorm2 = 0;
+        double orderdifference = 0;
+        double ordersum = 0;
+        for (int i = 0; i < jointsize; i++) { // Go trough every word of the joint word set
+            int word = scratch.jointwords[i];
+            
+            // Values of the semantic and word order vectors of the book sentence
+            double semantic1;
+            double order1;
+            if (scratch.bookpositions[i] != -1){ // If the sentence contains the word, the semantic similarity is 1
+                semantic1 = corpusstats[word]*corpusstats[word];
+                order1 = scratch.bookpositions[i]+1;
+            }
+            else{ // Use the most similar word of the sentence (if it is similar enough, else 0)
+                int bestindex = findBestMatch(scratch.jointterms[i], scratch.bookterms, bookWords.length, scratch);
+                semantic1 = (bestindex != -1)?scratch.bestsimilarity*corpusstats[word]*corpusstats[bookWords[bestindex]]:0;
+                order1 = bestindex+1;
+            }
+            
+            // Values of the semantic and word order vectors of the subtitle
+            double semantic2;
+            double order2;
+            if (scratch.subtitlepositions[i] != -1){
+                semantic2 = corpusstats[word]*corpusstats[word];
+                order2 = scratch.subtitlepositions[i]+1;
+            }
+            else{
+                int bestindex = findBestMatch(scratch.jointterms[i], scratch.subtitleterms, subtitleWords.length, scratch);
+                semantic2 = (bestindex != -1)?scratch.bestsimilarity*corpusstats[word]*corpusstats[subtitleWords[bestindex]]:0;
+                order2 = bestindex+1;
+            }
+            
+            dotproduct += semantic1*semantic2;
+            semanticnorm1 += semantic1*semantic1;
+            semanticnorm2 += semantic2*semantic2;
+            double difference = order1-order2;
+            orderdifference += difference*difference;
+            double sum = order1+order2;
+            ordersum += sum*sum;
         }
         
-        // Calculate lexical semantic similarity
-        RealVector semanticvector1 = getSemanticVector(bookWords,posmap,jointwordset);
-        RealVector semanticvector2 = getSemanticVector(subtitleWords,posmap,jointwordset);
-        double sentencesimilarity = semanticvector1.cosine(semanticvector2);
+        // Calculate lexical semantic similarity (cosine of the semantic vectors)
+        double norm1 = Math.sqrt(semanticnorm1);
+        double norm2 = Math.sqrt(semanticnorm2);
+        if (norm1 == 0 || norm2 == 0){
+            throw new MathArithmeticException(LocalizedFormats.ZERO_NORM);
+        }
+        double sentencesimilarity = dotproduct/(norm1*norm2);
         
         // Calculate word order similarity
-        RealVector ordervector1 = getWordOrderVector(bookWords,posmap,jointwordset);
-        RealVector ordervector2 = getWordOrderVector(subtitleWords,posmap,jointwordset);
-        double wordordersimilarity = 1 - ((ordervector1.subtract(ordervector2)).getNorm()/(ordervector1.add(ordervector2)).getNorm());
+        double wordordersimilarity = 1 - (Math.sqrt(orderdifference)/Math.sqrt(ordersum));
         
         return relativelexicalimportance*sentencesimilarity+(1-relativelexicalimportance)*wordordersimilarity;
     }
-
+    
     /**
-     * Generates the semantic vector of a sentence, based on its joint word set
-     * @param sentence the sentence for which to calculate the vector
-     * @param posmap the POS tags for the joint word set
-     * @param jointwordset the joint word set of both sentences
-     * @return the semantic vector
+     * Finds the word of a sentence that is most similar to a word of the joint word set
+     * @param term the term of the word from the joint word set
+     * @param sentenceterms the terms of the words of the sentence
+     * @param length the number of words of the sentence
+     * @param scratch the buffers of the current thread, in which the similarity of the best match is put
+     * @return the position of the most similar word (the first one), -1 if no word is similar enough
      */
-    private RealVector getSemanticVector(List<String> sentence, Map<String,String> pos, List<String> jointwordset) {
-        double[] semanticvector = new double[jointwordset.size()];
-        
-        int i = 0;
-        for (String word : jointwordset) { // Go trough every word of the joint word set
-            if (sentence.contains(word)){ // If the sentence contains the word, the semantic similarity is 1
-                semanticvector[i++] = 1*corpusstats.get(word)*corpusstats.get(word);
-            }
-            else{ 
-                // If it doesn't contain the word, we look in the sentence for the word 
-                // that is most similar to the one in the joint word set
-                double maxsim = 0;
-                String bestmatch = null;
-                
-                // Go over every word in the sentence and find the one most similar to the word from the joint word set
-                for (String sentenceword : sentence) {  
-                    double sim = ws.getWordSimilarity(word, sentenceword, pos.get(word), pos.get(sentenceword));
-                    if (sim > maxsim){
-                        maxsim = sim;
-                        bestmatch = sentenceword;
-                    }
-                }
-                // If the most similar word is similar enough according to the threshold, calculate the similarity measure
-                if (maxsim > minwordsim){
-                    semanticvector[i++] = maxsim*corpusstats.get(word)*corpusstats.get(bestmatch);
-                }
-                // If not, use 0 as similarity
-                else{
-                    semanticvector[i++] = 0;
-                }
-            }
+    private int findBestMatch(int term, int[] sentenceterms, int length, PairScratch scratch){
+        if (term < 0 || wordsimilarities.getSimilarTerms(term).length == 0){ // The word isn't similar to any word
+            return -1;
         }
-        return new ArrayRealVector(semanticvector);
-    }
-
-    /**
-     * Generates the word order vector of a sentence, based on its joint word set
-     * @param sentence the sentence for which to calculate the vector
-     * @param pos1 the POS tags for the that sentence
-     * @param pos2 the POS tags for the other sentence
-     * @param jointwordset the joint word set of both sentences
-     * @return the word order vector
-     */
-    private RealVector getWordOrderVector(List<String> sentence, Map<String,String> pos, List<String> jointwordset) {
-        double[] worderordervector = new double[jointwordset.size()];
-        
-        int i = 0;
-        for (String word : jointwordset) { // Go trough every word of the joint word set
-            int wordindex = sentence.indexOf(word);
-            if (wordindex != -1){ // If the sentence contains the word, we can use its index (+1, because we count from 1)
-                worderordervector[i++] = wordindex+1;
-            }
-            else{ 
-                // If it doesn't contain the word, we look in the sentence for the word 
-                // that is most similar to the one in the joint word set
-                double maxsim = 0;
-                int bestindex = -1;
-
-                // Go over every word in the sentence and find the one most similar to the word from the joint word set
-                int j = 0;
-                for (String sentenceword : sentence) {  
-                    double sim = ws.getWordSimilarity(word, sentenceword, pos.get(word), pos.get(sentenceword));
-                    if (sim > maxsim){
-                        maxsim = sim;
-                        bestindex = j;
-                    }
-                    j++;
-                }
-                // If the most similar word is similar enough according to the threshold, use its index (+1, because we count from 1)
-                if (maxsim > minwordsim){
-                    worderordervector[i++] = bestindex+1;
-                }
-                // If not, use 0 as index
-                else{
-                    worderordervector[i++] = 0;
-                }
+        double maxsim = 0;
+        int bestindex = -1;
+        for (int j = 0; j < length && maxsim < 1; j++) { // No word can beat a similarity of 1
+            double sim = wordsimilarities.get(term, sentenceterms[j]);
+            if (sim > maxsim){
+                maxsim = sim;
+                bestindex = j;
             }
         }
-        return new ArrayRealVector(worderordervector);
-    }    
+        if (maxsim > minwordsim){
+            scratch.bestsimilarity = maxsim;
+            return bestindex;
+        }
+        return -1;
+    }
     
     /**
-     * Processes a list of sentences by splitting into tokens, performing POS tagging and collecting corpus statistics
-     * @param sentences the list of sentences
-     * @param tokenList the list in which to put the tokenized sentences
-     * @param posList the List in which to put the found POS tags
-     * @param wordstats the map in which to keep track of word occurrences
-     * @return the total number of words that were put in the sentence list
+     * Loads the POS model, if that hasn't happened yet
+     * @return the model, null if it couldn't be loaded
      */
-    private static int processSentences(List<String> sentences, List<List<String>> tokenList, List<List<String>> posList, Map<String, Double> wordstats) {     
+    private static synchronized POSModel loadPOSModel(){
+        if (loadedposmodel != null){
+            return loadedposmodel;
+        }
         InputStream modelIn = null;
         POSModel model = null;
         try {
-            modelIn = new FileInputStream("models/en-pos-maxent.bin");
+            modelIn = new FileInputStream(posmodel);
             model = new POSModel(modelIn);
         }
         catch (IOException e) {
@@ -314,18 +971,60 @@ public class SemanticSimilarity {
                 }
             }
         }
-        POSTaggerME tagger = new POSTaggerME(model);
-       
-        int words = 0;
+        loadedposmodel = model;
+        return model;
+    }
+    
+    /**
+     * Splits the sentences in parts (one for each thread) that are tokenized and POS tagged
+     * @param sentences the list of sentences
+     * @param model the POS model, shared by the taggers of all parts
+     * @param executor the executor that runs the parts, null to run them immediately
+     * @return the pending results of the parts, in the order of the sentences
+     */
+    private List<Future<TaggedSentences>> tagSentences(List<String> sentences, final POSModel model, ExecutorService executor){
+        List<Future<TaggedSentences>> parts = new ArrayList<Future<TaggedSentences>>();
+        int numberofparts = Math.max(1, Math.min(threads, sentences.size()));
+        for (int part = 0; part < numberofparts; part++){
+            final List<String> partsentences = sentences.subList(part*sentences.size()/numberofparts, (part+1)*sentences.size()/numberofparts);
+            FutureTask<TaggedSentences> task = new FutureTask<TaggedSentences>(new Callable<TaggedSentences>() {
+                @Override
+                public TaggedSentences call() {
+                    return tagPart(partsentences, new POSTaggerME(model));
+                }
+            });
+            if (executor != null){
+                executor.execute(task);
+            }
+            else{
+                task.run();
+            }
+            parts.add(task);
+        }
+        return parts;
+    }
+    
+    /**
+     * Tokenizes and POS tags a part of the sentences and counts its words
+     * @param sentences the sentences of the part
+     * @param tagger the tagger of this part
+     * @return the words and POS classes of each sentence (without punctuation) and the word counts of the part
+     */
+    private static TaggedSentences tagPart(List<String> sentences, POSTaggerME tagger){
+        String[][] words = new String[sentences.size()][];
+        byte[][] posList = new byte[sentences.size()][];
+        Map<String, Double> wordstats = new HashMap<String, Double>();
+        int numberofwords = 0;
+        int index = 0;
         for (String sentence : sentences) {
             String[] tokens = SimpleTokenizer.INSTANCE.tokenize(sentence);
             String[] tags = tagger.tag(tokens);
-            List<String> pos = new ArrayList<String>();
             List<String> wordlist = new ArrayList<String>();
+            List<Byte> pos = new ArrayList<Byte>();
             for (int i = 0; i < tokens.length; i++) {
                 String wordtext = tokens[i].toLowerCase();
                 String wordpos = tags[i];
-                if (wordtext.matches(".*[a-zA-Z0-9].*")){ // Don't do punctuation
+                if (wordpattern.matcher(wordtext).matches()){ // Don't do punctuation
                     Double occurrence = wordstats.get(wordtext);
                     if (occurrence != null){
                         wordstats.put(wordtext, occurrence+1);
@@ -333,14 +1032,72 @@ public class SemanticSimilarity {
                     else{
                         wordstats.put(wordtext, 1.0);
                     }
-                    words++;
+                    numberofwords++;
                     wordlist.add(wordtext);
-                    pos.add(wordpos);
+                    pos.add(WordSimilarity.getPOSClass(wordpos));
                 }
             }
-            tokenList.add(wordlist);
-            posList.add(pos);
+            words[index] = wordlist.toArray(new String[wordlist.size()]);
+            posList[index] = new byte[pos.size()];
+            for (int i = 0; i < pos.size(); i++){
+                posList[index][i] = pos.get(i);
+            }
+            index++;
+        }
+        return new TaggedSentences(words, posList, wordstats, numberofwords);
+    }
+    
+    /**
+     * Waits for the tagged parts of a list of sentences and joins them
+     * @param parts the pending results of the parts, in the order of the sentences
+     * @return the tagged sentences
+     */
+    private static TaggedSentences joinParts(List<Future<TaggedSentences>> parts){
+        List<TaggedSentences> tagged = new ArrayList<TaggedSentences>();
+        for (Future<TaggedSentences> part : parts) {
+            try {
+                tagged.add(part.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+        return TaggedSentences.join(tagged);
+    }
+    
+    /**
+     * Converts tokenized and POS tagged sentences to word ids and adds their corpus statistics. The word ids
+     * are numbered per run, the vocabulary ids are given in the order of the sentences, like when tagging sequentially
+     * @param tagged the tagged sentences
+     * @param tokenList the array in which to put the tokenized sentences (word ids)
+     * @param posList the array in which to put the POS classes of the tokens
+     * @param wordstats the map in which to keep track of word occurrences
+     * @param wordids the ids of the words of this run, new words are added
+     * @param vocabularyids the vocabulary id of each word id, the ids of new words are added
+     * @return the total number of words that were put in the sentence list
+     */
+    private static int processSentences(TaggedSentences tagged, int[][] tokenList, byte[][] posList, Map<String, Double> wordstats,
+            Map<String, Integer> wordids, List<Integer> vocabularyids) {
+        String[][] words = tagged.getWords();
+        for (int i = 0; i < words.length; i++){
+            tokenList[i] = new int[words[i].length];
+            for (int j = 0; j < words[i].length; j++){
+                Integer id = wordids.get(words[i][j]);
+                if (id == null){
+                    id = wordids.size();
+                    wordids.put(words[i][j], id);
+                    vocabularyids.add(vocabulary.getId(words[i][j]));
+                }
+                tokenList[i][j] = id;
+            }
+            posList[i] = tagged.getPOS()[i];
+        }
+        for (Map.Entry<String, Double> entry : tagged.getWordstats().entrySet()){
+            Double occurrence = wordstats.get(entry.getKey());
+            wordstats.put(entry.getKey(), (occurrence != null)?occurrence+entry.getValue():entry.getValue());
         }
-        return words;
+        return tagged.getNumberOfWords();
     }
 }
@@ -0,0 +1,415 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk store of word similarities that is shared between runs.
+ * The file starts with a header, followed by an open addressing table and a log of entries 
+ * that were added after the table was written. The table is memory-mapped, so opening the store 
+ * costs almost no I/O. New similarities are appended to the log at the end of a run, 
+ * when the log gets too big the table is rebuilt. The file is mapped again after it is written, so a service
+ * only keeps the log in memory. The store is only used with the WordNet dictionary it was made with.
+ * @author jeknocka
+ */
+public class SimilarityStore implements CacheStatistics {
+    
+    // Layout of the file
+    private static final int magic = 0x5753494D; // "WSIM"
+    private static final int formatversion = 1;
+    private static final int headersize = 32; // magic, version, dictionary fingerprint, capacity, table entries, log entries, unused
+    private static final int entrysize = 16; // key, similarity
+    private static final int logentriesoffset = 24;
+    
+    private final File file;
+    private final long dictionaryfingerprint;
+    
+    // The contents of the file, replaced when the file was written
+    private volatile Mapping mapping;
+    
+    // Entries that were added during this run
+    private long[] pendingkeys = new long[1024];
+    private double[] pendingvalues = new double[1024];
+    private int pendingsize;
+    
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    // The mapped table and the entries of the log of the file
+    private static class Mapping{
+        private final MappedByteBuffer table; // null if there was no usable file
+        private final int capacity;
+        private final int tableentries;
+        private final PairSimilarityCache logged;
+        private final int logentries;
+        
+        public Mapping(MappedByteBuffer table, int capacity, int tableentries, PairSimilarityCache logged, int logentries){
+            this.table = table;
+            this.capacity = capacity;
+            this.tableentries = tableentries;
+            this.logged = logged;
+            this.logentries = logentries;
+        }
+    }
+    
+    /**
+     * Opens the store in the given file, an empty store is used if the file doesn't exist 
+     * or belongs to another dictionary
+     * @param file the file of the store
+     * @param dictionary the WordNet dictionary folder
+     * @throws IOException reading the file or the dictionary failed
+     */
+    public SimilarityStore(File file, File dictionary) throws IOException {
+        this.file = file;
+        this.dictionaryfingerprint = getFingerprint(dictionary);
+        this.mapping = map();
+    }
+    
+    /**
+     * Map the table of the file and read its log, an empty store is used if the file doesn't exist
+     * or belongs to another dictionary
+     * @return the contents of the file
+     * @throws IOException reading the file failed
+     */
+    private Mapping map() throws IOException {
+        PairSimilarityCache logged = new PairSimilarityCache(0);
+        MappedByteBuffer mapped = null;
+        int mappedcapacity = 0;
+        int mappedentries = 0;
+        int mappedlogentries = 0;
+        if (file.exists()){
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                if (channel.size() >= headersize){
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (mapped.getInt(0) == magic && mapped.getInt(4) == formatversion && mapped.getLong(8) == dictionaryfingerprint){
+                        mappedcapacity = mapped.getInt(16);
+                        mappedentries = mapped.getInt(20);
+                        mappedlogentries = mapped.getInt(logentriesoffset);
+                        // Only use the log entries that were completely written
+                        long logstart = headersize+(long)mappedcapacity*entrysize;
+                        mappedlogentries = (int)Math.min(mappedlogentries, (channel.size()-logstart)/entrysize);
+                        for (int i = 0; i < mappedlogentries; i++){
+                            int position = (int)(logstart+(long)i*entrysize);
+                            logged.put(mapped.getLong(position), mapped.getDouble(position+8));
+                        }
+                    }
+                    else{ // Made with another dictionary (or not a store), start over
+                        mapped = null;
+                    }
+                }
+            } finally {
+                in.close(); // The mapping stays valid
+            }
+        }
+        return new Mapping(mapped, mappedcapacity, mappedentries, logged, mappedlogentries);
+    }
+    
+    /**
+     * Get a similarity from the store
+     * @param word1 first word
+     * @param word2 second word
+     * @param type POS class of the words
+     * @return the similarity, -1 if not stored
+     */
+    public double get(String word1, String word2, byte type){
+        long key = getKey(word1, word2, type);
+        Mapping current = mapping;
+        MappedByteBuffer table = current.table;
+        int capacity = current.capacity;
+        if (table != null && capacity > 0){
+            int slot = (int)(key & (capacity-1));
+            long slotkey = table.getLong(headersize+slot*entrysize);
+            while (slotkey != 0){
+                if (slotkey == key){
+                    hits.incrementAndGet();
+                    return table.getDouble(headersize+slot*entrysize+8);
+                }
+                slot = (slot+1) & (capacity-1);
+                slotkey = table.getLong(headersize+slot*entrysize);
+            }
+        }
+        double similarity = current.logged.get(key);
+        if (similarity >= 0){
+            hits.incrementAndGet();
+        }
+        else{
+            misses.incrementAndGet();
+        }
+        return similarity;
+    }
+    
+    /**
+     * Add a similarity to the store, it is written to the file when the store is closed
+     * @param word1 first word
+     * @param word2 second word
+     * @param type POS class of the words
+     * @param similarity the similarity
+     */
+    public synchronized void put(String word1, String word2, byte type, double similarity){
+        if (pendingsize == pendingkeys.length){
+            pendingkeys = Arrays.copyOf(pendingkeys, pendingsize*2);
+            pendingvalues = Arrays.copyOf(pendingvalues, pendingsize*2);
+        }
+        pendingkeys[pendingsize] = getKey(word1, word2, type);
+        pendingvalues[pendingsize] = similarity;
+        pendingsize++;
+    }
+    
+    /**
+     * Write the similarities that were added during this run to the file, the store can still be used afterwards
+     * @throws IOException writing the file failed
+     */
+    public synchronized void close() throws IOException {
+        if (pendingsize == 0){
+            return;
+        }
+        // Other runs could be writing at the same time, a separate lock file is used
+        // because the store itself is replaced when it is rebuilt
+        RandomAccessFile lockfile = new RandomAccessFile(new File(file.getPath()+".lock"), "rw");
+        try {
+            FileLock lock = lockfile.getChannel().lock();
+            try {
+                RandomAccessFile out = new RandomAccessFile(file, "rw");
+                try {
+                    FileChannel channel = out.getChannel();
+                    ByteBuffer header = ByteBuffer.allocate(headersize);
+                    boolean usable = channel.size() >= headersize && channel.read(header, 0) == headersize
+                            && header.getInt(0) == magic && header.getInt(4) == formatversion && header.getLong(8) == dictionaryfingerprint;
+                    int currentcapacity = (usable)?header.getInt(16):0;
+                    int currententries = (usable)?header.getInt(20):0;
+                    int currentlogentries = (usable)?header.getInt(logentriesoffset):0;
+                    // Append to the log while it stays small compared to the table, else rebuild the table
+                    if (usable && currentlogentries+pendingsize <= currentcapacity/4){
+                        appendLog(channel, currentcapacity, currentlogentries);
+                        channel.force(true);
+                    }
+                    else{
+                        rebuild(channel, usable, currentcapacity, currententries, currentlogentries);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockfile.close();
+        }
+        // Use the written similarities in the next runs of this application (a service runs many jobs),
+        // the table of a rebuilt file stays on disk and only the log is read
+        pendingsize = 0;
+        mapping = map();
+    }
+    
+    /**
+     * Append the pending entries to the log of the file
+     * (the file only grows, so runs that have mapped it can keep reading)
+     * @param channel the channel of the file
+     * @param currentcapacity capacity of the table in the file
+     * @param currentlogentries number of entries in the log of the file
+     * @throws IOException writing failed
+     */
+    private void appendLog(FileChannel channel, int currentcapacity, int currentlogentries) throws IOException {
+        long logend = headersize+(long)currentcapacity*entrysize+(long)currentlogentries*entrysize;
+        ByteBuffer entries = ByteBuffer.allocate(pendingsize*entrysize);
+        for (int i = 0; i < pendingsize; i++){
+            entries.putLong(pendingkeys[i]);
+            entries.putDouble(pendingvalues[i]);
+        }
+        entries.flip();
+        while (entries.hasRemaining()){
+            channel.write(entries, logend+entries.position());
+        }
+        // Update the header after the entries are written
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(0, currentlogentries+pendingsize);
+        channel.write(count, logentriesoffset);
+    }
+    
+    /**
+     * Write a new file with a table that contains all entries and an empty log, and put it in place of the old one
+     * (runs that have mapped the old file keep their mapping)
+     * @param channel the channel of the current file
+     * @param usable true if the current file contains a table for the current dictionary
+     * @param currentcapacity capacity of the table in the current file
+     * @param currententries number of entries in the table of the current file
+     * @param currentlogentries number of entries in the log of the current file
+     * @throws IOException reading or writing failed
+     */
+    private void rebuild(FileChannel channel, boolean usable, int currentcapacity, int currententries, int currentlogentries) throws IOException {
+        // Read the entries that are already in the file
+        int existing = (usable)?currententries+currentlogentries:0;
+        long[] keys = new long[existing+pendingsize];
+        double[] values = new double[existing+pendingsize];
+        int size = 0;
+        if (usable){
+            ByteBuffer old = ByteBuffer.allocate((int)Math.min(channel.size()-headersize, ((long)currentcapacity+currentlogentries)*entrysize));
+            while (old.hasRemaining() && channel.read(old, headersize+old.position()) > 0){
+            }
+            old.flip();
+            while (old.remaining() >= entrysize && size < existing){
+                long key = old.getLong();
+                double value = old.getDouble();
+                if (key != 0){
+                    keys[size] = key;
+                    values[size] = value;
+                    size++;
+                }
+            }
+        }
+        System.arraycopy(pendingkeys, 0, keys, size, pendingsize);
+        System.arraycopy(pendingvalues, 0, values, size, pendingsize);
+        size += pendingsize;
+        
+        // Fill a new table, at most half full
+        int newcapacity = 1024;
+        while (newcapacity < 2*size){
+            newcapacity *= 2;
+        }
+        ByteBuffer newfile = ByteBuffer.allocate(headersize+newcapacity*entrysize);
+        int newentries = 0;
+        for (int i = 0; i < size; i++){
+            int slot = (int)(keys[i] & (newcapacity-1));
+            long slotkey = newfile.getLong(headersize+slot*entrysize);
+            while (slotkey != 0 && slotkey != keys[i]){
+                slot = (slot+1) & (newcapacity-1);
+                slotkey = newfile.getLong(headersize+slot*entrysize);
+            }
+            if (slotkey == 0){
+                newentries++;
+            }
+            newfile.putLong(headersize+slot*entrysize, keys[i]);
+            newfile.putDouble(headersize+slot*entrysize+8, values[i]);
+        }
+        newfile.putInt(0, magic);
+        newfile.putInt(4, formatversion);
+        newfile.putLong(8, dictionaryfingerprint);
+        newfile.putInt(16, newcapacity);
+        newfile.putInt(20, newentries);
+        newfile.putInt(logentriesoffset, 0);
+        
+        File tempfile = new File(file.getPath()+".tmp");
+        RandomAccessFile out = new RandomAccessFile(tempfile, "rw");
+        try {
+            FileChannel tempchannel = out.getChannel();
+            tempchannel.truncate(0);
+            while (newfile.hasRemaining()){
+                tempchannel.write(newfile, newfile.position());
+            }
+            tempchannel.force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(tempfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Calculate the key of a word pair, independent of the order of the words
+     * @param word1 first word
+     * @param word2 second word
+     * @param type POS class of the words
+     * @return the key (never 0, which marks an empty slot)
+     */
+    private static long getKey(String word1, String word2, byte type){
+        long hash1 = hash(word1);
+        long hash2 = hash(word2);
+        long low = Math.min(hash1, hash2);
+        long high = Math.max(hash1, hash2);
+        long key = mix(mix(low*31+high)+type) & Long.MAX_VALUE; // Keys are never negative
+        return (key == 0)?1:key;
+    }
+    
+    /**
+     * 64 bit FNV-1a hash of a word
+     * @param word the word
+     * @return the hash
+     */
+    private static long hash(String word){
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < word.length(); i++){
+            hash ^= word.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+    
+    /**
+     * Spread the bits of a hash
+     * @param hash the hash
+     * @return the mixed hash
+     */
+    private static long mix(long hash){
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+    
+    /**
+     * Calculate a fingerprint of the WordNet dictionary, based on the names and sizes of its files 
+     * and the start of each file (which contains the version)
+     * @param dictionary the dictionary folder
+     * @return the fingerprint
+     * @throws IOException reading the dictionary failed
+     */
+    private static long getFingerprint(File dictionary) throws IOException {
+        long fingerprint = 0;
+        File[] files = dictionary.listFiles();
+        if (files == null){
+            throw new IOException("Dictionary not found: "+dictionary.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        byte[] start = new byte[4096];
+        for (File dictfile : files){
+            if (dictfile.isFile()){
+                fingerprint = mix(fingerprint*31+hash(dictfile.getName()));
+                fingerprint = mix(fingerprint*31+dictfile.length());
+                InputStream in = new FileInputStream(dictfile);
+                try {
+                    int read = in.read(start);
+                    for (int i = 0; i < read; i++){
+                        fingerprint = fingerprint*31+start[i];
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return mix(fingerprint);
+    }
+
+    @Override
+    public int size() {
+        Mapping current = mapping;
+        return current.tableentries+current.logentries;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return 0;
+    }
+}
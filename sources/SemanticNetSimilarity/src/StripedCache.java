@@ -0,0 +1,133 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache with a maximum number of entries. The entries are spread over a number of segments 
+ * that each have their own lock, so threads only wait on each other when they use the same segment.
+ * When a segment is full, its least recently used (or oldest) entry is evicted.
+ * @author jeknocka
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class StripedCache<K, V> implements Cache<K, V> {
+    
+    // Number of segments (power of two)
+    private static final int nrofsegments = 16;
+    
+    private final Segment<K, V>[] segments;
+    
+    // Class to represent a segment of the cache, all access goes trough the segment lock
+    private static class Segment<K, V> extends LinkedHashMap<K, V>{
+        private static final long serialVersionUID = 1L;
+        private final int maxentries;
+        private long hits;
+        private long misses;
+        private long evictions;
+        
+        public Segment(int maxentries, boolean accessorder){
+            super(16, 0.75f, accessorder);
+            this.maxentries = maxentries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() > maxentries){
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Create a cache with the given bound
+     * @param maxentries maximum number of entries in the cache
+     * @param lru true to evict the least recently used entries, false to evict the oldest entries
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StripedCache(int maxentries, boolean lru){
+        segments = new Segment[nrofsegments];
+        int maxsegmententries = Math.max(1, maxentries/nrofsegments);
+        for (int i = 0; i < nrofsegments; i++){
+            segments[i] = new Segment<K, V>(maxsegmententries, lru);
+        }
+    }
+    
+    /**
+     * Find the segment for a key
+     * @param key the key
+     * @return the segment that holds the key
+     */
+    private Segment<K, V> getSegment(Object key){
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (nrofsegments-1)];
+    }
+
+    @Override
+    public V get(K key) {
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment){
+            V value = segment.get(key);
+            if (value != null){
+                segment.hits++;
+            }
+            else{
+                segment.misses++;
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Segment<K, V> segment = getSegment(key);
+        synchronized (segment){
+            segment.put(key, value);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments){
+            synchronized (segment){
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        long hits = 0;
+        for (Segment<K, V> segment : segments){
+            synchronized (segment){
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        long misses = 0;
+        for (Segment<K, V> segment : segments){
+            synchronized (segment){
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    @Override
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment<K, V> segment : segments){
+            synchronized (segment){
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+}
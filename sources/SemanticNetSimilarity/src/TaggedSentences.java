@@ -0,0 +1,90 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sentences after tokenizing and POS tagging: the lowercase words of each sentence (without punctuation),
+ * their POS classes and the number of occurrences of each word
+ * @author jeknocka
+ */
+public class TaggedSentences {
+
+    private final String[][] words;
+    private final byte[][] pos;
+    private final Map<String, Double> wordstats;
+    private final int numberofwords;
+
+    /**
+     * Creates tagged sentences
+     * @param words the words of each sentence
+     * @param pos the POS classes of the words of each sentence
+     * @param wordstats the number of occurrences of each word
+     * @param numberofwords the total number of words
+     */
+    public TaggedSentences(String[][] words, byte[][] pos, Map<String, Double> wordstats, int numberofwords){
+        this.words = words;
+        this.pos = pos;
+        this.wordstats = wordstats;
+        this.numberofwords = numberofwords;
+    }
+
+    /**
+     * Joins consecutive parts of tagged sentences
+     * @param parts the parts, in the order of the sentences
+     * @return the tagged sentences of all parts
+     */
+    public static TaggedSentences join(List<TaggedSentences> parts){
+        int sentences = 0;
+        for (TaggedSentences part : parts){
+            sentences += part.words.length;
+        }
+        String[][] words = new String[sentences][];
+        byte[][] pos = new byte[sentences][];
+        Map<String, Double> wordstats = new HashMap<String, Double>();
+        int numberofwords = 0;
+        int index = 0;
+        for (TaggedSentences part : parts){
+            System.arraycopy(part.words, 0, words, index, part.words.length);
+            System.arraycopy(part.pos, 0, pos, index, part.pos.length);
+            index += part.words.length;
+            for (Map.Entry<String, Double> entry : part.wordstats.entrySet()){
+                Double occurrence = wordstats.get(entry.getKey());
+                wordstats.put(entry.getKey(), (occurrence != null)?occurrence+entry.getValue():entry.getValue());
+            }
+            numberofwords += part.numberofwords;
+        }
+        return new TaggedSentences(words, pos, wordstats, numberofwords);
+    }
+
+    /**
+     * Get the words of each sentence
+     * @return the words
+     */
+    public String[][] getWords() {
+        return words;
+    }
+
+    /**
+     * Get the POS classes of the words of each sentence
+     * @return the POS classes
+     */
+    public byte[][] getPOS() {
+        return pos;
+    }
+
+    /**
+     * Get the number of occurrences of each word
+     * @return the word counts
+     */
+    public Map<String, Double> getWordstats() {
+        return wordstats;
+    }
+
+    /**
+     * Get the total number of words
+     * @return the number of words
+     */
+    public int getNumberOfWords() {
+        return numberofwords;
+    }
+}
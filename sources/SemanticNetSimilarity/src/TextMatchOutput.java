@@ -0,0 +1,33 @@
+import java.io.PrintStream;
+
+/**
+ * Prints the matches and the progress as lines of text: "match - subindex - bookindex - score" and "name - progress%"
+ * @author jeknocka
+ */
+public class TextMatchOutput implements MatchOutput {
+
+    private final PrintStream out;
+
+    /**
+     * Creates an output that prints to the given stream
+     * @param out the stream (standard output or a connection)
+     */
+    public TextMatchOutput(PrintStream out){
+        this.out = out;
+    }
+
+    @Override
+    public void addMatch(int subindex, int bookindex, double score) {
+        out.format("match - %d - %d - %.2f\n",subindex,bookindex,score);
+    }
+
+    @Override
+    public void setProgress(String name, int progress) {
+        out.println(name+" - "+progress+"%");
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache without a bound on its size, entries are never evicted
+ * @author jeknocka
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class UnboundedCache<K, V> implements Cache<K, V> {
+    
+    private final ConcurrentMap<K, V> entries = new ConcurrentHashMap<K, V>();
+    
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Override
+    public V get(K key) {
+        V value = entries.get(key);
+        if (value != null){
+            hits.incrementAndGet();
+        }
+        else{
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return 0;
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Singleton class that maps every word to a dense integer id.
+ * Ids never change during the lifetime of the application, so they can be used as cache keys.
+ * @author jeknocka
+ */
+public class Vocabulary {
+    
+    // Ids of the words
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    // Words for each id (only grows, a new array is published when it needs to grow)
+    private volatile String[] words = new String[1024];
+    private volatile int size;
+    
+    // Instance
+    private final static Vocabulary instance = new Vocabulary();
+    
+    public static Vocabulary getInstance(){
+        return instance;
+    }
+    
+    private Vocabulary(){
+    }
+    
+    /**
+     * Get the id of a word, a new id is assigned if the word wasn't seen before
+     * @param word the word
+     * @return the id of the word
+     */
+    public int getId(String word){
+        Integer id = ids.get(word);
+        if (id != null){
+            return id;
+        }
+        synchronized (this){
+            id = ids.get(word);
+            if (id == null){
+                id = size;
+                if (id == words.length){
+                    String[] newwords = new String[words.length*2];
+                    System.arraycopy(words, 0, newwords, 0, words.length);
+                    words = newwords;
+                }
+                words[id] = word;
+                size = id+1;
+                ids.put(word, id); // Publish the id after the word is stored
+            }
+            return id;
+        }
+    }
+    
+    /**
+     * Get the word for an id
+     * @param id the id
+     * @return the word
+     */
+    public String getWord(int id){
+        return words[id];
+    }
+    
+    /**
+     * @return the number of words in the vocabulary (all ids are smaller than this)
+     */
+    public int size(){
+        return size;
+    }
+}
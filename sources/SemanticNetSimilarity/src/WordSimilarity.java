@@ -6,12 +6,16 @@ import edu.smu.tspell.wordnet.SynsetType;
 import edu.smu.tspell.wordnet.VerbSynset;
 import edu.smu.tspell.wordnet.WordNetDatabase;
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Singleton class with functions to calculate word similarity
@@ -19,44 +23,88 @@ import java.util.Set;
  */
 public class WordSimilarity {
     
+    // POS classes of words
+    public static final byte OTHER = 0;
+    public static final byte NOUN = 1;
+    public static final byte VERB = 2;
+    
     // Cache for similarities between words
-    private final Map<String,Double> cachednounsimilarities;
-    private final Map<String,Double> cachedverbsimilarities;
+    private PairSimilarityCache cachednounsimilarities;
+    private PairSimilarityCache cachedverbsimilarities;
+    
+    // Cache for the synsets of words (words without synsets are cached too)
+    private Cache<String,Synset[]> cachednounsynsets;
+    private Cache<String,Synset[]> cachedverbsynsets;
     
     // Cache for the wordtrees
-    private final Map<Synset, Map<Synset, Set<Synset>>> cachedSynsetTrees;
+    private Cache<Synset, SynsetTree> cachedSynsetTrees;
     
     // Cache for nodes
-    private final Map<Synset, Set<Synset>> nounnodes;
-    private final Map<Synset, Set<Synset>> nounnodeswithoutholonyms;
-    private final Map<Synset, Set<Synset>> verbnodes;
+    private Cache<Synset, Set<Synset>> nounnodes;
+    private Cache<Synset, Set<Synset>> nounnodeswithoutholonyms;
+    private Cache<Synset, Set<Synset>> verbnodes;
     
-    // Cache for distances
-    private final Map<Synset,Map<Synset, Integer>> cacheddistances;
+    // Store of similarities that is shared between runs, null if not used
+    private volatile SimilarityStore store;
+    
+    // Rough estimates of the memory used by one cache entry (in bytes), used to divide a memory bound over the caches
+    private static final int similarityentrysize = 64;
+    private static final int synsetsentrysize = 400;
+    private static final int treeentrysize = 512;
+    private static final int nodeentrysize = 320;
     
     // Optimal parameters for WordNet
     private static final double alpha = 0.2;
     private static final double beta = 0.45;
     
+    // Lookup tables for the length and depth functions of small path lengths and depths
+    private static final int functiontablesize = 64;
+    private static final double[] lengthfunctions = new double[functiontablesize];
+    private static final double[] depthfunctions = new double[functiontablesize];
+    static {
+        for (int i = 0; i < functiontablesize; i++){
+            lengthfunctions[i] = getLengthFunction(i);
+            depthfunctions[i] = getDepthFunction(i);
+        }
+    }
+    
     // Class to represent path results
-    private class Path{
+    private static class Path{
         private final int length;
-        private final Synset subsumer;
-        private int subsumerdepth;
+        private final int subsumerdepth;
         
-        public Path(int length, Synset subsumer){
+        public Path(int length, int subsumerdepth){
             this.length = length;
-            this.subsumer = subsumer;
-        }
-
-        public void setSubsumerdepth(int subsumerdepth) {
             this.subsumerdepth = subsumerdepth;
         }
     }
     
+    // Class to represent the ancestors of a synset in its tree (including the synset itself), 
+    // with their distance to the synset and their depth in the tree
+    private static class SynsetTree{
+        private final int[] ancestors; // Synset ids, in ascending order
+        private final int[] distances;
+        private final int[] depths;
+        private final int depth; // Depth of the synset itself
+        
+        public SynsetTree(int[] ancestors, int[] distances, int[] depths, int depth){
+            this.ancestors = ancestors;
+            this.distances = distances;
+            this.depths = depths;
+            this.depth = depth;
+        }
+    }
+    
+    // Ids of the synsets, to compare the ancestors of two trees
+    private final static ConcurrentMap<Synset, Integer> synsetids = new ConcurrentHashMap<Synset, Integer>();
+    private final static AtomicInteger nextsynsetid = new AtomicInteger();
+    
     // WordNet DB instance
     private final static WordNetDatabase wn = WordNetDatabase.getFileInstance(); // Get the wordnet database
     
+    // Ids of the words
+    private final static Vocabulary vocabulary = Vocabulary.getInstance();
+    
     // Instance
     private final static WordSimilarity instance = new WordSimilarity();
     
@@ -67,17 +115,86 @@ public class WordSimilarity {
     private WordSimilarity(){
         // Set path to wordnet dictionairy
         System.setProperty("wordnet.database.dir", (new File("dict")).getAbsolutePath());
-        cachednounsimilarities = new HashMap<String,Double>();
-        cachedverbsimilarities = new HashMap<String,Double>();
-        cachedSynsetTrees = new HashMap<Synset, Map<Synset, Set<Synset>>>();
-        cacheddistances = new HashMap<Synset, Map<Synset, Integer>>();
-        nounnodes = new HashMap<Synset, Set<Synset>>();
-        nounnodeswithoutholonyms = new HashMap<Synset, Set<Synset>>();
-        verbnodes = new HashMap<Synset, Set<Synset>>();
+        configureCaches(0, true);
+    }
+    
+    /**
+     * (Re)creates the caches, should be called before any similarity is calculated.
+     * The caches are shared by all threads that calculate similarities.
+     * @param maxmemory the (approximate) memory in MB the caches may use together, 0 or less for unbounded caches
+     * @param lru true to evict the least recently used entries first, false to evict the oldest entries first
+     * (the word pair caches always keep the recently used entries)
+     */
+    public final void configureCaches(int maxmemory, boolean lru){
+        long maxbytes = maxmemory*1024L*1024L;
+        // Nouns are far more common than verbs, the trees take the biggest part
+        cachednounsimilarities = new PairSimilarityCache((int)Math.min(maxbytes*30/100/similarityentrysize, Integer.MAX_VALUE));
+        cachedverbsimilarities = new PairSimilarityCache((int)Math.min(maxbytes*10/100/similarityentrysize, Integer.MAX_VALUE));
+        cachednounsynsets = createCache(maxbytes*4/100/synsetsentrysize, lru);
+        cachedverbsynsets = createCache(maxbytes*2/100/synsetsentrysize, lru);
+        cachedSynsetTrees = createCache(maxbytes*44/100/treeentrysize, lru);
+        nounnodes = createCache(maxbytes*5/100/nodeentrysize, lru);
+        nounnodeswithoutholonyms = createCache(maxbytes*2/100/nodeentrysize, lru);
+        verbnodes = createCache(maxbytes*3/100/nodeentrysize, lru);
+    }
+    
+    /**
+     * Create a cache with the given bound
+     * @param maxentries the maximum number of entries, 0 or less for an unbounded cache
+     * @param lru true to evict the least recently used entries first, false to evict the oldest entries first
+     * @return the cache
+     */
+    private static <K, V> Cache<K, V> createCache(long maxentries, boolean lru){
+        if (maxentries <= 0){
+            return new UnboundedCache<K, V>();
+        }
+        return new StripedCache<K, V>((int)Math.min(maxentries, Integer.MAX_VALUE), lru);
+    }
+    
+    /**
+     * Set the store in which the similarities are kept between runs
+     * @param store the store, null to not use a store
+     */
+    public void setStore(SimilarityStore store){
+        this.store = store;
+    }
+    
+    /**
+     * Get the statistics of the caches, to be read after a run
+     * @return a line per cache with its size, hits, misses and evictions
+     */
+    public String getCacheStatistics(){
+        StringBuilder statistics = new StringBuilder();
+        appendCacheStatistics(statistics, "nounsimilarities", cachednounsimilarities);
+        appendCacheStatistics(statistics, "verbsimilarities", cachedverbsimilarities);
+        appendCacheStatistics(statistics, "nounsynsets", cachednounsynsets);
+        appendCacheStatistics(statistics, "verbsynsets", cachedverbsynsets);
+        appendCacheStatistics(statistics, "synsettrees", cachedSynsetTrees);
+        appendCacheStatistics(statistics, "nounnodes", nounnodes);
+        appendCacheStatistics(statistics, "nounnodeswithoutholonyms", nounnodeswithoutholonyms);
+        appendCacheStatistics(statistics, "verbnodes", verbnodes);
+        if (store != null){
+            appendCacheStatistics(statistics, "store", store);
+        }
+        return statistics.toString();
     }
     
     /**
-     * Get the word similarity of two words
+     * Add the statistics of a cache to the given builder
+     * @param statistics the builder
+     * @param name name of the cache
+     * @param cache the cache
+     */
+    private static void appendCacheStatistics(StringBuilder statistics, String name, CacheStatistics cache){
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        double hitrate = (hits+misses > 0)?(100.0*hits)/(hits+misses):0;
+        statistics.append(String.format("cache - %s - size %d - hits %d - misses %d - evictions %d - hitrate %.1f%%%n",
+                name, cache.size(), hits, misses, cache.getEvictions(), hitrate));
+    }
+    
+    /**
+     * Get the word similarity of two words (safe to call from multiple threads)
      * @param word1 first word
      * @param word2 second word
      * @param pos1 POS tag of first word
@@ -85,47 +202,116 @@ public class WordSimilarity {
      * @return the word similarity
      */
     public double getWordSimilarity(String word1, String word2, String pos1, String pos2) {
-        SynsetType type1 = getSynsetType(pos1); 
-        SynsetType type2 = getSynsetType(pos2);
-        
-        if (word1.equals(word2)){ // If the words are the same, the similarity is 1
+        return getWordSimilarity(vocabulary.getId(word1), vocabulary.getId(word2), getPOSClass(pos1), getPOSClass(pos2));
+    }
+    
+    /**
+     * Get the word similarity of two words (safe to call from multiple threads)
+     * @param word1 id of the first word
+     * @param word2 id of the second word
+     * @param type1 POS class of the first word
+     * @param type2 POS class of the second word
+     * @return the word similarity
+     */
+    public double getWordSimilarity(int word1, int word2, byte type1, byte type2) {
+        if (word1 == word2){ // If the words are the same, the similarity is 1
             return 1;
         }
-        else if (type1 != null && type1.equals(type2) && // Same POS
-                (type1.equals(SynsetType.NOUN)||type1.equals(SynsetType.VERB))){ // Only verbs and nouns have hierarchies
-            double fromCache = checkCacheForSimilarity(word1,word2,type1);
+        else if (type1 == type2 && type1 != OTHER){ // Same POS, only verbs and nouns have hierarchies
+            PairSimilarityCache cache = (type1 == NOUN)?cachednounsimilarities:cachedverbsimilarities;
+            long key = PairSimilarityCache.getKey(word1, word2);
+            double fromCache = cache.get(key);
             if (fromCache >= 0){
                 return fromCache;
             }
-            Synset[] syns1 = wn.getSynsets(word1,type1);
-            Synset[] syns2 = wn.getSynsets(word2,type2);
-            if (syns1.length > 0 && syns2.length > 0){ // Both words included in WordNet
-                Path path = getPath(syns1,syns2);
-                double lengthfunction = Math.exp(-alpha*path.length);
-                double ebh = Math.exp(beta*path.subsumerdepth);
-                double nebh = Math.exp(-beta*path.subsumerdepth);
-                double depthfunction = (ebh-nebh)/(ebh+nebh);
-                double similarity = lengthfunction*depthfunction;
-                // Cache similarity value
-                addSimilarityToCache(word1,word2,type1,similarity);
-                return similarity;
+            SimilarityStore currentstore = store;
+            double similarity = (currentstore != null)?currentstore.get(vocabulary.getWord(word1), vocabulary.getWord(word2), type1):-1;
+            if (similarity < 0){ // Not in the store, calculate it
+                SynsetType type = (type1 == NOUN)?SynsetType.NOUN:SynsetType.VERB;
+                similarity = calculateWordSimilarity(vocabulary.getWord(word1), vocabulary.getWord(word2), type);
+                if (currentstore != null){
+                    currentstore.put(vocabulary.getWord(word1), vocabulary.getWord(word2), type1, similarity);
+                }
             }
+            // Cache similarity value (also when the words aren't included in WordNet)
+            cache.put(key, similarity);
+            return similarity;
         }
         return 0; // In all other cases, the similarity is zero
     }
+    
+    /**
+     * Calculate the word similarity of two different words with the same type
+     * @param word1 first word
+     * @param word2 second word
+     * @param type type of the words (noun or verb)
+     * @return the word similarity
+     */
+    private double calculateWordSimilarity(String word1, String word2, SynsetType type) {
+        if (word1.compareTo(word2) > 0){ // Always calculate in the same direction, so the result doesn't depend on which thread fills the cache first
+            String word = word1;
+            word1 = word2;
+            word2 = word;
+        }
+        Synset[] syns1 = getSynsets(word1,type);
+        Synset[] syns2 = getSynsets(word2,type);
+        if (syns1.length > 0 && syns2.length > 0){ // Both words included in WordNet
+            Path path = getPath(syns1,syns2);
+            double lengthfunction = (path.length >= 0 && path.length < functiontablesize)?lengthfunctions[path.length]:getLengthFunction(path.length);
+            double depthfunction = (path.subsumerdepth >= 0 && path.subsumerdepth < functiontablesize)?depthfunctions[path.subsumerdepth]:getDepthFunction(path.subsumerdepth);
+            return lengthfunction*depthfunction;
+        }
+        return 0;
+    }
+    
+    /**
+     * Calculate the function of the path length
+     * @param length the path length
+     * @return the value of the function
+     */
+    private static double getLengthFunction(int length){
+        return Math.exp(-alpha*length);
+    }
+    
+    /**
+     * Calculate the function of the subsumer depth
+     * @param depth the depth of the subsumer
+     * @return the value of the function
+     */
+    private static double getDepthFunction(int depth){
+        double ebh = Math.exp(beta*depth);
+        double nebh = Math.exp(-beta*depth);
+        return (ebh-nebh)/(ebh+nebh);
+    }
 
     /**
-     * Find the synset type based on the POS tag
+     * Get the synsets of a word from cache if possible or from WordNet
+     * @param word the word
+     * @param type the type of the word (noun or verb)
+     * @return the synsets, empty if the word isn't included in WordNet
+     */
+    private Synset[] getSynsets(String word, SynsetType type){
+        Cache<String, Synset[]> cache = (type.equals(SynsetType.NOUN))?cachednounsynsets:cachedverbsynsets;
+        Synset[] synsets = cache.get(word);
+        if (synsets == null){
+            synsets = wn.getSynsets(word, type);
+            cache.put(word, synsets);
+        }
+        return synsets;
+    }
+
+    /**
+     * Find the POS class based on the POS tag
      * @param pos the pos tag
-     * @return the synsettype according to the tag
+     * @return the POS class according to the tag
      */
-    private SynsetType getSynsetType(String pos) {
-        SynsetType type = null;
+    public static byte getPOSClass(String pos) {
+        byte type = OTHER;
         if (pos.contains("NN")){
-            type = SynsetType.NOUN;
+            type = NOUN;
         }
         else if (pos.contains("VB")){
-            type = SynsetType.VERB;
+            type = VERB;
         }
         return type;
     }
@@ -137,63 +323,50 @@ public class WordSimilarity {
      * @return the path
      */
     private Path getPath(Synset[] synsets1, Synset[] synsets2) {
-        // Calculate paths
-        Map<Synset, Map<Synset, Set<Synset>>> trees1 = new HashMap<Synset, Map<Synset, Set<Synset>>>();
-        Map<Synset, Map<Synset, Set<Synset>>> trees2 = new HashMap<Synset, Map<Synset, Set<Synset>>>();
-        for (Synset synset : synsets1) {
-            trees1.put(synset, getSynsetTree(synset));
+        // Get the trees
+        SynsetTree[] trees1 = new SynsetTree[synsets1.length];
+        SynsetTree[] trees2 = new SynsetTree[synsets2.length];
+        for (int i = 0; i < synsets1.length; i++) {
+            trees1[i] = getSynsetTree(synsets1[i]);
         }
-        for (Synset synset : synsets2) {
-            trees2.put(synset, getSynsetTree(synset));
+        for (int i = 0; i < synsets2.length; i++) {
+            trees2[i] = getSynsetTree(synsets2[i]);
         }
         
         // Look for an equal synset (= pathlength 0)
-        for (Synset synset1 : synsets1) { 
+        for (int i = 0; i < synsets1.length; i++) { 
             for (Synset synset2 : synsets2) {
-                if (synset1.equals(synset2)) {
-                    Path path = new Path(0,synset1);
-                    path.setSubsumerdepth(getSingleDistance(trees1.get(synset1),synset1,null));
-                    return path;
+                if (synsets1[i].equals(synset2)) {
+                    return new Path(0,trees1[i].depth);
                 }
             }
         }
         // Look for common words in the synsets (= pathlength 1)
-        for (Synset synset1 : synsets1) {
-            List<String> words1 = Arrays.asList(synset1.getWordForms());
-            for (Synset synset2 : synsets2) {
-                String[] words2 = synset2.getWordForms();
+        for (int i = 0; i < synsets1.length; i++) {
+            List<String> words1 = Arrays.asList(synsets1[i].getWordForms());
+            for (int j = 0; j < synsets2.length; j++) {
+                String[] words2 = synsets2[j].getWordForms();
                 for (String word : words2) {
                     if (words1.contains(word)){
                         // Get the deepest of the two synsets
-                        int depth1 = getSingleDistance(trees1.get(synset1), synset1, null);
-                        int depth2 = getSingleDistance(trees2.get(synset2), synset2, null);
-                        int maxdepth = (depth1 >= depth2)?depth1:depth2;
-                        Synset subsumer = (depth1 >= depth2)?synset1:synset2;
-                        Path path = new Path(1, subsumer);
-                        path.setSubsumerdepth(maxdepth);
-                        return path;                        
+                        return new Path(1, Math.max(trees1[i].depth, trees2[j].depth));
                     }
                 }
             }
         }
         
-        // Compare paths
+        // Compare paths, with the deepest subsumer when paths are equally long
         Path minpath = null;
-        Map<Synset, Set<Synset>> mintree = null;
-        
-        for (Map.Entry<Synset, Map<Synset, Set<Synset>>> tree1 : trees1.entrySet()) {
-            for (Map.Entry<Synset, Map<Synset, Set<Synset>>> tree2 : trees2.entrySet()) {
-                Path newpath = getTotalPath(tree1.getValue(),tree2.getValue(),
-                        tree1.getKey(),tree2.getKey());
-                if (minpath == null || newpath.length < minpath.length){
-                    mintree = tree1.getValue();
+        boolean verbs = synsets1[0].getType().equals(SynsetType.VERB);
+        for (SynsetTree tree1 : trees1) {
+            for (SynsetTree tree2 : trees2) {
+                Path newpath = getTotalPath(tree1,tree2,verbs);
+                if (minpath == null || newpath.length < minpath.length 
+                        || (newpath.length == minpath.length && newpath.subsumerdepth > minpath.subsumerdepth)){
                     minpath = newpath;
                 }
             }
         }
-        if (minpath != null && minpath.subsumer != null){ // If the subsumer is filled in, set its depth
-            minpath.setSubsumerdepth(getSingleDistance(mintree, minpath.subsumer, null));
-        }
         return minpath;
     }
 
@@ -297,168 +470,160 @@ public class WordSimilarity {
      * Get the path with shortest total distance between a startnode and a goalnode
      * @param starttree the tree from the perspective of the startnode
      * @param goaltree the tree from the perspective of the goalnode
-     * @param start the startnode
-     * @param goal the goalnoade
-     * @return the path with the shortest total distance
+     * @param verbs true if the nodes are verbs
+     * @return the path with the shortest total distance (the depth of the subsumer is taken from the start tree)
      */
-    private Path getTotalPath(Map<Synset, Set<Synset>> starttree, Map<Synset, Set<Synset>> goaltree, Synset start, Synset goal) {
+    private static Path getTotalPath(SynsetTree starttree, SynsetTree goaltree, boolean verbs) {
         int bestdistance = Integer.MAX_VALUE;
-        Synset bestsubsumer = null;
-        Set<Synset> commonsets = new HashSet<Synset>();
-        
-        for (Synset synset : goaltree.keySet()) { // Get the shared sets 
-            if (starttree.keySet().contains(synset)){
-                commonsets.add(synset);
-            }
-        }
-        // Go trough the nodes that are shared between trees,
+        int bestdepth = 0;
+        // Go trough the nodes that are shared between trees (both lists are in ascending order),
         // calculate the distance when using each of these as subsumer and keep the minimum distance
-        for (Synset synset : commonsets) {
-            int startToSubsumer = getSingleDistance(starttree, start, synset);
-            int goalToSubsumer = getSingleDistance(goaltree, goal, synset);
-            int totalDistance = startToSubsumer+goalToSubsumer;
-            if (totalDistance < bestdistance){
-                bestdistance = totalDistance;
-                bestsubsumer = synset;
+        int i = 0;
+        int j = 0;
+        while (i < starttree.ancestors.length && j < goaltree.ancestors.length){
+            if (starttree.ancestors[i] < goaltree.ancestors[j]){
+                i++;
+            }
+            else if (starttree.ancestors[i] > goaltree.ancestors[j]){
+                j++;
+            }
+            else{
+                int totalDistance = starttree.distances[i]+goaltree.distances[j];
+                if (totalDistance < bestdistance || (totalDistance == bestdistance && starttree.depths[i] > bestdepth)){
+                    bestdistance = totalDistance;
+                    bestdepth = starttree.depths[i];
+                }
+                i++;
+                j++;
             }
         }
-        if (start.getType().equals(SynsetType.VERB)){ // If we're handling verbs, try the root nodes too
-            // Get distance to current root nodes, but add one to each distance for the virtual rootnode
-            int startToRoot = getSingleDistance(starttree, start, null);
-            int goalToRoot = getSingleDistance(goaltree, goal, null);
-            int totalDistance = startToRoot+goalToRoot;
+        if (verbs){ // If we're handling verbs, try the root nodes too
+            // Get distance to current root nodes (the depths include the virtual rootnode)
+            int totalDistance = starttree.depth+goaltree.depth;
             if (totalDistance < bestdistance){
                 bestdistance = totalDistance;
             }
         }
-        Path path = new Path(bestdistance,bestsubsumer);
-        // If a virtual root node (in the case of verbs) was chose, that's the subsumer
-        // This isn't a real node, so we set subsumer to null, but we know its depth (0)
-        if (bestsubsumer == null){ 
-            path.setSubsumerdepth(0);
-        }
-        return path;
+        // If no shared node was found, the subsumer is the virtual root node (in the case of verbs), with depth 0
+        return new Path(bestdistance,bestdepth);
     }
     
     /**
-     * Calculates the path length between the given start and goal within the same path
-     * @param path given path, contains parents for each node
-     * @param start start node
-     * @param goal end node, null if looking for the distance to the root node
-     * @return the path length
+     * Gets a synset tree from cache if possible or generates one, saves it in the cache and returns it
+     * @param synset the synset
+     * @return the synset tree
      */
-    private int getSingleDistance(Map<Synset, Set<Synset>> path, Synset start, Synset goal){
-        int dist =  getSingleDistanceRecursive(path, start, goal, 0);
-        if (dist < 0){
-            System.err.println("No distance found!");
+    private SynsetTree getSynsetTree(Synset synset) {
+        SynsetTree tree = cachedSynsetTrees.get(synset);
+        if (tree == null){
+            tree = createSynsetTree(synset, calculatePaths(synset,true));
+            cachedSynsetTrees.put(synset, tree);
         }
-        return dist;
+        return tree;
     }
-
+    
     /**
-     * Calculates the path length between the given start and goal within the same path
-     * @param path given path, contains parents for each node
-     * @param start start node
-     * @param goal end node, null if looking for the distance to the root node
-     * @param distance the distance traveled so far
-     * @return the path length
+     * Collects the distances from a synset to its ancestors and the depths of the ancestors
+     * @param synset the synset
+     * @param parents the tree of the synset, represented as a map with the parents for each node
+     * @return the synset tree
      */
-    private int getSingleDistanceRecursive(Map<Synset, Set<Synset>> path, Synset start, Synset goal, int distance) {
-        // Check cache
-        Map<Synset, Integer> cachedstartdistances = cacheddistances.get(start);
-        Integer cacheddistance = (cachedstartdistances!=null)?cachedstartdistances.get(goal):null;
-        
-        if (cacheddistance != null){
-            return distance+cacheddistance;
-        }
-        if (goal != null && goal.equals(start)){ // If goal is same as start, the pathlength is given by the traveled distance
-            return distance;
-        }
-        else { // Check all possible paths to the goal and take the shortest to return
-            int bestdistance = Integer.MAX_VALUE;
-            Set<Synset> parents = path.get(start);
-            // If looking for the root node, we've found it, 
-            //because the startnode is the root node (it has no parents)
-            if (goal == null && parents.isEmpty()){ 
-                if (start.getType().equals(SynsetType.VERB)){ // Real root node is virtual, so one up
-                    distance++;
-                }
-                return distance;
-            }
-            for (Synset parent : parents) {
-                int pathlength = getSingleDistanceRecursive(path, parent, goal, distance+1); // Add one to traveled distance
-                if (pathlength < bestdistance && pathlength >= 0){
-                    bestdistance = pathlength;
+    private static SynsetTree createSynsetTree(Synset synset, Map<Synset, Set<Synset>> parents){
+        // Distances from the synset to its ancestors (breadth first, so the first distance found is the shortest)
+        Map<Synset, Integer> distances = new HashMap<Synset, Integer>();
+        ArrayDeque<Synset> queue = new ArrayDeque<Synset>();
+        distances.put(synset, 0);
+        queue.add(synset);
+        while (!queue.isEmpty()){
+            Synset node = queue.poll();
+            Set<Synset> nodeparents = parents.get(node);
+            if (nodeparents != null){
+                for (Synset parent : nodeparents){
+                    if (!distances.containsKey(parent)){
+                        distances.put(parent, distances.get(node)+1);
+                        queue.add(parent);
+                    }
                 }
             }
-            // Write to cache
-            if (cachedstartdistances == null){
-                cachedstartdistances = new HashMap<Synset, Integer>();
-                cacheddistances.put(start, cachedstartdistances);
-            }
-            if (bestdistance == Integer.MAX_VALUE){ // No path found
-                return -1;
+        }
+        
+        // Depths of the nodes, breadth first from the root nodes down
+        // (the real root node of verbs is virtual, so their root nodes have depth 1)
+        Map<Synset, Set<Synset>> children = new HashMap<Synset, Set<Synset>>();
+        Map<Synset, Integer> depths = new HashMap<Synset, Integer>();
+        int rootdepth = (synset.getType().equals(SynsetType.VERB))?1:0;
+        for (Synset node : distances.keySet()){
+            Set<Synset> nodeparents = parents.get(node);
+            if (nodeparents == null || nodeparents.isEmpty()){
+                depths.put(node, rootdepth);
+                queue.add(node);
             }
             else{
-                cachedstartdistances.put(goal,bestdistance);
-                return bestdistance;
+                for (Synset parent : nodeparents){
+                    Set<Synset> parentchildren = children.get(parent);
+                    if (parentchildren == null){
+                        parentchildren = new HashSet<Synset>();
+                        children.put(parent, parentchildren);
+                    }
+                    parentchildren.add(node);
+                }
             }
         }
-    }
-    
-    /**
-     * Check if the similarity value was cached before
-     * @param word1 first word
-     * @param word2 second word
-     * @param type type of the words
-     * @return -1 if not cached, else the similarity value
-     */
-    private double checkCacheForSimilarity(String word1, String word2, SynsetType type) {
-        String key = (word1.compareTo(word2) <= 0)?word1+" "+word2:word2+" "+word1;
-        Double result;
-        if (type.equals(SynsetType.NOUN)){
-            result = cachednounsimilarities.get(key);
-        }
-        else{
-            result = cachedverbsimilarities.get(key);
-        }
-        if (result != null){
-            return result;
-        }
-        else{
-            return -1;
+        while (!queue.isEmpty()){
+            Synset node = queue.poll();
+            Set<Synset> nodechildren = children.get(node);
+            if (nodechildren != null){
+                for (Synset child : nodechildren){
+                    if (!depths.containsKey(child)){
+                        depths.put(child, depths.get(node)+1);
+                        queue.add(child);
+                    }
+                }
+            }
         }
-    }
-    
-    /**
-     * Adds the similarity value to the cache
-     * @param word1 first word
-     * @param word2 second word
-     * @param type word type
-     * @param similarity the similarity value
-     */
-    private void addSimilarityToCache(String word1, String word2, SynsetType type, double similarity) {
-        String key = (word1.compareTo(word2) <= 0)?word1+" "+word2:word2+" "+word1;
-        if (type.equals(SynsetType.NOUN)){
-            cachednounsimilarities.put(key, similarity);
+        
+        // Sort the ancestors on their id
+        long[] sortedancestors = new long[distances.size()];
+        Synset[] ancestorsynsets = new Synset[distances.size()];
+        int index = 0;
+        for (Synset ancestor : distances.keySet()){
+            ancestorsynsets[index] = ancestor;
+            sortedancestors[index] = ((long)getSynsetId(ancestor) << 32) | index;
+            index++;
         }
-        else{
-            cachedverbsimilarities.put(key, similarity);
+        Arrays.sort(sortedancestors);
+        int[] ancestors = new int[sortedancestors.length];
+        int[] ancestordistances = new int[sortedancestors.length];
+        int[] ancestordepths = new int[sortedancestors.length];
+        for (int i = 0; i < sortedancestors.length; i++){
+            Synset ancestor = ancestorsynsets[(int)sortedancestors[i]];
+            Integer depth = depths.get(ancestor);
+            if (depth == null){
+                System.err.println("No distance found!");
+            }
+            ancestors[i] = (int)(sortedancestors[i] >>> 32);
+            ancestordistances[i] = distances.get(ancestor);
+            ancestordepths[i] = (depth != null)?depth:-1;
         }
+        Integer depth = depths.get(synset);
+        return new SynsetTree(ancestors, ancestordistances, ancestordepths, (depth != null)?depth:-1);
     }
     
     /**
-     * Gets a synset tree from cache if possible or generates one, saves it in the cache and returns it
+     * Get the id of a synset, synsets get an id when they are first seen
      * @param synset the synset
-     * @return the synset tree
+     * @return the id
      */
-    private Map<Synset, Set<Synset>> getSynsetTree(Synset synset) {
-        Map<Synset, Set<Synset>> tree = cachedSynsetTrees.get(synset);
-        if (tree == null){
-            tree = calculatePaths(synset,true);
-            cachedSynsetTrees.put(synset, tree);
+    private static int getSynsetId(Synset synset){
+        Integer id = synsetids.get(synset);
+        if (id == null){
+            Integer newid = nextsynsetid.getAndIncrement();
+            id = synsetids.putIfAbsent(synset, newid);
+            if (id == null){
+                id = newid;
+            }
         }
-        return tree;
+        return id;
     }
     
 }
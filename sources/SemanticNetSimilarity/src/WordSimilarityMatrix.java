@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Precalculated word similarities between the terms (nouns and verbs with their POS class) of a corpus.
+ * Only the similarities above the minimum word similarity are kept, in a sparse row per term.
+ * The similarities are calculated for each pair of which at least one term occurs in the subtitles, 
+ * because a sentence pair never compares two terms that only occur in the book
+ * (the POS class of a word that occurs in both sentences comes from the subtitle).
+ * @author jeknocka
+ */
+public class WordSimilarityMatrix {
+
+    private final double minwordsim; // Similarities that aren't above this value are left out
+
+    // The terms, a term is a word with the POS class it had in a sentence
+    private final Map<Long, Integer> termindices = new HashMap<Long, Integer>();
+    private int[] termwords = new int[1024];
+    private byte[] termtypes = new byte[1024];
+    private boolean[] subtitleterms = new boolean[1024];
+    private int termcount;
+
+    // Sparse rows of the matrix, with the columns in ascending order
+    private int[][] columns;
+    private double[][] values;
+
+    // Word Similarity instance
+    private final static WordSimilarity ws = WordSimilarity.getInstance();
+
+    /**
+     * Creates an empty matrix
+     * @param minwordsim Minimum word similarity to be categorized as similar
+     */
+    public WordSimilarityMatrix(double minwordsim){
+        this.minwordsim = minwordsim;
+    }
+
+    /**
+     * Adds a term to the matrix if it isn't included yet, should be called before the similarities are calculated
+     * @param word id of the word
+     * @param type POS class of the word
+     * @param subtitle true if the term occurs in a subtitle
+     * @return index of the term, -1 for words that aren't nouns or verbs
+     */
+    public int addTerm(int word, byte type, boolean subtitle){
+        if (type == WordSimilarity.OTHER){
+            return -1;
+        }
+        long key = ((long)word << 2) | type;
+        Integer term = termindices.get(key);
+        if (term == null){
+            if (termcount == termwords.length){
+                termwords = Arrays.copyOf(termwords, termcount*2);
+                termtypes = Arrays.copyOf(termtypes, termcount*2);
+                subtitleterms = Arrays.copyOf(subtitleterms, termcount*2);
+            }
+            term = termcount++;
+            termwords[term] = word;
+            termtypes[term] = type;
+            termindices.put(key, term);
+        }
+        subtitleterms[term] |= subtitle;
+        return term;
+    }
+
+    /**
+     * Calculates the similarities between the terms
+     * @param threads number of threads that calculate the similarities
+     * @param sharedexecutor the executor that runs the threads, null to start a pool for this calculation
+     * @throws IllegalStateException the calculation was interrupted (a failed worker throws its own exception)
+     */
+    public void calculate(int threads, ExecutorService sharedexecutor){
+        // Rows of the subtitle terms, calculated by the threads
+        final List<Integer> rowterms = new ArrayList<Integer>();
+        for (int term = 0; term < termcount; term++){
+            if (subtitleterms[term]){
+                rowterms.add(term);
+            }
+        }
+        final int[][] foundcolumns = new int[rowterms.size()][];
+        final double[][] foundvalues = new double[rowterms.size()][];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int[] rowcolumns = new int[16];
+                double[] rowvalues = new double[16];
+                for (int i = next.getAndIncrement(); i < rowterms.size(); i = next.getAndIncrement()){
+                    int term = rowterms.get(i);
+                    int rowsize = 0;
+                    for (int other = 0; other < termcount; other++){
+                        // Pairs of two subtitle terms are only calculated once
+                        if (other != term && termtypes[other] == termtypes[term] && !(subtitleterms[other] && other < term)){
+                            double sim = ws.getWordSimilarity(termwords[term], termwords[other], termtypes[term], termtypes[other]);
+                            if (sim > minwordsim){
+                                if (rowsize == rowcolumns.length){
+                                    rowcolumns = Arrays.copyOf(rowcolumns, rowsize*2);
+                                    rowvalues = Arrays.copyOf(rowvalues, rowsize*2);
+                                }
+                                rowcolumns[rowsize] = other;
+                                rowvalues[rowsize] = sim;
+                                rowsize++;
+                            }
+                        }
+                    }
+                    foundcolumns[i] = Arrays.copyOf(rowcolumns, rowsize);
+                    foundvalues[i] = Arrays.copyOf(rowvalues, rowsize);
+                }
+            }
+        };
+        if (threads > 1){
+            ExecutorService executor = (sharedexecutor != null)?sharedexecutor:Executors.newFixedThreadPool(threads);
+            List<Future<?>> workers = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++){
+                workers.add(executor.submit(worker));
+            }
+            try {
+                for (Future<?> running : workers){
+                    running.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } catch (ExecutionException ex) { // The matrix would miss the rows of the failed worker
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException){
+                    throw (RuntimeException)cause;
+                }
+                else if (cause instanceof Error){
+                    throw (Error)cause;
+                }
+                throw new IllegalStateException(cause);
+            } finally {
+                next.set(rowterms.size()); // The other workers stop after their current row
+                if (executor != sharedexecutor){
+                    executor.shutdown();
+                }
+                else{
+                    for (Future<?> waiting : workers){ // Workers that didn't start yet
+                        waiting.cancel(false);
+                    }
+                }
+            }
+        }
+        else{
+            worker.run();
+        }
+
+        // Fill the rows of both terms of each pair
+        int[] rowsizes = new int[termcount];
+        for (int i = 0; i < foundcolumns.length; i++){
+            rowsizes[rowterms.get(i)] += foundcolumns[i].length;
+            for (int other : foundcolumns[i]){
+                rowsizes[other]++;
+            }
+        }
+        columns = new int[termcount][];
+        values = new double[termcount][];
+        for (int term = 0; term < termcount; term++){
+            columns[term] = new int[rowsizes[term]];
+            values[term] = new double[rowsizes[term]];
+            rowsizes[term] = 0;
+        }
+        for (int i = 0; i < foundcolumns.length; i++){
+            int term = rowterms.get(i);
+            for (int j = 0; j < foundcolumns[i].length; j++){
+                addEntry(term, foundcolumns[i][j], foundvalues[i][j], rowsizes);
+                addEntry(foundcolumns[i][j], term, foundvalues[i][j], rowsizes);
+            }
+        }
+        for (int term = 0; term < termcount; term++){
+            sortRow(term);
+        }
+    }
+
+    /**
+     * Adds an entry to a row
+     * @param term the term of the row
+     * @param other the term of the column
+     * @param similarity the similarity of the terms
+     * @param rowsizes the number of entries that were already added to each row
+     */
+    private void addEntry(int term, int other, double similarity, int[] rowsizes){
+        columns[term][rowsizes[term]] = other;
+        values[term][rowsizes[term]] = similarity;
+        rowsizes[term]++;
+    }
+
+    /**
+     * Sorts the entries of a row on their column (rows are short, so insertion sort is used)
+     * @param term the term of the row
+     */
+    private void sortRow(int term){
+        int[] rowcolumns = columns[term];
+        double[] rowvalues = values[term];
+        for (int i = 1; i < rowcolumns.length; i++){
+            int column = rowcolumns[i];
+            double value = rowvalues[i];
+            int j = i-1;
+            while (j >= 0 && rowcolumns[j] > column){
+                rowcolumns[j+1] = rowcolumns[j];
+                rowvalues[j+1] = rowvalues[j];
+                j--;
+            }
+            rowcolumns[j+1] = column;
+            rowvalues[j+1] = value;
+        }
+    }
+
+    /**
+     * Get the similarity of two terms of different words, of which at least one occurs in the subtitles
+     * @param term1 index of the first term, -1 if the word isn't a noun or verb
+     * @param term2 index of the second term, -1 if the word isn't a noun or verb
+     * @return the word similarity, 0 if it isn't above the minimum word similarity
+     */
+    public double get(int term1, int term2){
+        if (term1 < 0 || term2 < 0){
+            return 0;
+        }
+        else if (term1 == term2){
+            return 1;
+        }
+        int[] rowcolumns = columns[term1];
+        int low = 0;
+        int high = rowcolumns.length-1;
+        while (low <= high){
+            int middle = (low+high) >>> 1;
+            if (rowcolumns[middle] < term2){
+                low = middle+1;
+            }
+            else if (rowcolumns[middle] > term2){
+                high = middle-1;
+            }
+            else{
+                return values[term1][middle];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the terms that are similar enough to a term
+     * @param term index of the term
+     * @return the indices of the similar terms in ascending order (shouldn't be changed)
+     */
+    public int[] getSimilarTerms(int term){
+        return columns[term];
+    }
+    
+    /**
+     * Get the number of terms
+     * @return the number of terms
+     */
+    public int size(){
+        return termcount;
+    }
+}